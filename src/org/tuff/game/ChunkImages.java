@@ -0,0 +1,130 @@
+/**
+ *  This file is part of Tuff.
+ *
+ *  Tuff is free software: you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Tuff is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along with
+ *  Tuff. If not, see <http://www.gnu.org/licenses/>.
+ *  
+ */
+
+package org.tuff.game;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+public class ChunkImages {
+	public static final int MAX_IMAGES = 16;
+
+	public interface ChunkPainter {
+		BufferedImage createChunk(int width, int height);
+
+		void paintChunk(Graphics2D g, int xs, int ys, int xm, int ym);
+	}
+
+	// Images of whole chunks of the map, they're painted again once one of
+	// the chunks they show has been written to
+	private final TileStore tiles;
+	private final ChunkPainter painter;
+	private final int size;
+	private final BufferedImage[] images;
+	private final int[] imageChanges;
+	private final int[] imageUse;
+	private int imageCount = 0;
+	private int imageClock = 0;
+	private BufferedImage spare = null;
+
+	public ChunkImages(final TileStore tiles, final ChunkPainter painter,
+			final int tileSize) {
+		this.tiles = tiles;
+		this.painter = painter;
+		size = TileStore.CHUNK_SIZE * tileSize;
+		images = new BufferedImage[tiles.chunksX * tiles.chunksY];
+		imageChanges = new int[images.length];
+		imageUse = new int[images.length];
+	}
+
+	// Images ------------------------------------------------------------------
+	public BufferedImage get(final int cx, final int cy) {
+		final int c = cy * tiles.chunksX + cx;
+		BufferedImage img = images[c];
+		if (img == null) {
+			if (imageCount >= MAX_IMAGES) {
+				evict();
+			}
+			img = spare != null ? spare : painter.createChunk(size, size);
+			spare = null;
+			images[c] = img;
+			imageCount++;
+			paint(cx, cy, img);
+
+		} else if (imageChanges[c] != changes(cx, cy)) {
+			paint(cx, cy, img);
+		}
+		imageUse[c] = ++imageClock;
+		return img;
+	}
+
+	private void paint(final int cx, final int cy, final BufferedImage img) {
+		final int xs = cx << TileStore.CHUNK_SHIFT;
+		final int ys = cy << TileStore.CHUNK_SHIFT;
+		final Graphics2D g = img.createGraphics();
+		painter.paintChunk(g, xs, ys, xs + TileStore.CHUNK_SIZE, ys
+				+ TileStore.CHUNK_SIZE);
+		g.dispose();
+
+		// Painting may render the chunk's cached layers, so this comes last
+		imageChanges[cy * tiles.chunksX + cx] = changes(cx, cy);
+	}
+
+	// Trees reach into the chunks right of and above their own one
+	private int changes(final int cx, final int cy) {
+		return tiles.changes(cx, cy) + tiles.changes(cx - 1, cy)
+				+ tiles.changes(cx, cy + 1) + tiles.changes(cx - 1, cy + 1);
+	}
+
+	private void evict() {
+		int oldest = -1;
+		for (int c = 0; c < images.length; c++) {
+			if (images[c] != null
+					&& (oldest == -1 || imageUse[c] < imageUse[oldest])) {
+				oldest = c;
+			}
+		}
+		if (oldest != -1) {
+			spare = images[oldest];
+			images[oldest] = null;
+			imageCount--;
+		}
+	}
+
+	// Invalidate --------------------------------------------------------------
+	public void invalidate(int xs, int ys, int xm, int ym) {
+		xs = Math.max(xs, 0) >> TileStore.CHUNK_SHIFT;
+		ys = Math.max(ys, 0) >> TileStore.CHUNK_SHIFT;
+		xm = Math.min((xm - 1) >> TileStore.CHUNK_SHIFT, tiles.chunksX - 1);
+		ym = Math.min((ym - 1) >> TileStore.CHUNK_SHIFT, tiles.chunksY - 1);
+		for (int cy = ys; cy <= ym; cy++) {
+			for (int cx = xs; cx <= xm; cx++) {
+				final int c = cy * tiles.chunksX + cx;
+				if (images[c] != null) {
+					spare = images[c];
+					images[c] = null;
+					imageCount--;
+				}
+			}
+		}
+	}
+
+	public void invalidate() {
+		invalidate(0, 0, tiles.width, tiles.height);
+	}
+}
@@ -0,0 +1,47 @@
+/**
+ *  This file is part of Tuff.
+ *
+ *  Tuff is free software: you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Tuff is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along with
+ *  Tuff. If not, see <http://www.gnu.org/licenses/>.
+ *  
+ */
+
+package org.tuff.game;
+
+import java.awt.AlphaComposite;
+
+public final class Composites {
+	public static final int LEVELS = 256;
+	public static final AlphaComposite OPAQUE = AlphaComposite.SrcOver;
+
+	// Java2D only validates its pipeline again when it gets a different
+	// composite, so every alpha level uses one shared instance
+	private static final AlphaComposite[] CACHE = new AlphaComposite[LEVELS];
+	static {
+		for (int i = 0; i < LEVELS; i++) {
+			CACHE[i] = AlphaComposite.getInstance(AlphaComposite.SRC_OVER,
+					i / (float) (LEVELS - 1));
+		}
+	}
+
+	private Composites() {
+	}
+
+	// Rounds like the blending loops do, so the quantized levels draw the
+	// same pixels as the exact ones
+	public static AlphaComposite get(final double alpha) {
+		final int level = (int) (alpha * (LEVELS - 1) + 0.5);
+		return CACHE[level < 0 ? 0 : (level >= LEVELS ? LEVELS - 1
+				: level)];
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ *  This file is part of Tuff.
+ *
+ *  Tuff is free software: you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Tuff is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along with
+ *  Tuff. If not, see <http://www.gnu.org/licenses/>.
+ *  
+ */
+
+package org.tuff.game;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+
+public class Compositor {
+	public static final int MAX_RECTS = 8;
+
+	// Damaged parts of the frame, stored as xs, ys, xm, ym
+	private final int[] rects = new int[MAX_RECTS * 4];
+	private int count = 0;
+	private boolean full = true;
+	private int width = 0;
+	private int height = 0;
+
+	public void resize(final int width, final int height) {
+		if (width != this.width || height != this.height) {
+			this.width = width;
+			this.height = height;
+			invalidate();
+		}
+	}
+
+	// Damage ------------------------------------------------------------------
+	public void invalidate() {
+		full = true;
+	}
+
+	public void damage(int xs, int ys, final int w, final int h) {
+		int xm = Math.min(xs + w, width);
+		int ym = Math.min(ys + h, height);
+		xs = Math.max(xs, 0);
+		ys = Math.max(ys, 0);
+		if (full || xs >= xm || ys >= ym) {
+			return;
+		}
+
+		// Touching rectangles get merged, once there are too many the new one
+		// joins whichever grows the least
+		int best = -1;
+		long bestGrowth = Long.MAX_VALUE;
+		for (int i = 0; i < count * 4; i += 4) {
+			if (xs <= rects[i + 2] && xm >= rects[i] && ys <= rects[i + 3]
+					&& ym >= rects[i + 1]) {
+				best = i;
+				break;
+			}
+			if (count == MAX_RECTS) {
+				final long growth = area(Math.min(xs, rects[i]), Math.min(ys,
+						rects[i + 1]), Math.max(xm, rects[i + 2]), Math.max(
+						ym, rects[i + 3]))
+						- area(rects[i], rects[i + 1], rects[i + 2],
+								rects[i + 3]);
+				if (growth < bestGrowth) {
+					bestGrowth = growth;
+					best = i;
+				}
+			}
+		}
+		if (best == -1) {
+			rects[count * 4] = xs;
+			rects[count * 4 + 1] = ys;
+			rects[count * 4 + 2] = xm;
+			rects[count * 4 + 3] = ym;
+			count++;
+
+		} else {
+			rects[best] = Math.min(xs, rects[best]);
+			rects[best + 1] = Math.min(ys, rects[best + 1]);
+			rects[best + 2] = Math.max(xm, rects[best + 2]);
+			rects[best + 3] = Math.max(ym, rects[best + 3]);
+		}
+
+		// Drawing most of the frame in pieces costs more than drawing it once
+		long damaged = 0;
+		for (int i = 0; i < count * 4; i += 4) {
+			damaged += area(rects[i], rects[i + 1], rects[i + 2], rects[i + 3]);
+		}
+		if (damaged * 2 > (long) width * height) {
+			full = true;
+		}
+	}
+
+	// Whether only a part of an area would be drawn again
+	public boolean isPartial(int xs, int ys, final int w, final int h) {
+		final int xm = Math.min(xs + w, width);
+		final int ym = Math.min(ys + h, height);
+		xs = Math.max(xs, 0);
+		ys = Math.max(ys, 0);
+		if (full || xs >= xm || ys >= ym) {
+			return false;
+		}
+
+		boolean partial = false;
+		for (int i = 0; i < count * 4; i += 4) {
+			if (xs >= rects[i] && xm <= rects[i + 2] && ys >= rects[i + 1]
+					&& ym <= rects[i + 3]) {
+				return false;
+
+			} else if (xs < rects[i + 2] && xm > rects[i] && ys < rects[i + 3]
+					&& ym > rects[i + 1]) {
+				partial = true;
+			}
+		}
+		return partial;
+	}
+
+	private long area(final int xs, final int ys, final int xm, final int ym) {
+		return (long) (xm - xs) * (ym - ys);
+	}
+
+	// Compose -----------------------------------------------------------------
+	public boolean isDamaged() {
+		return full || count > 0;
+	}
+
+	// The frame gets drawn once, clipped to everything that was damaged
+	public void clip(final Graphics2D g) {
+		if (full) {
+			g.setClip(0, 0, width, height);
+
+		} else if (count == 1) {
+			g.setClip(rects[0], rects[1], rects[2] - rects[0], rects[3]
+					- rects[1]);
+
+		} else {
+			final Area area = new Area();
+			for (int i = 0; i < count * 4; i += 4) {
+				area.add(new Area(new Rectangle(rects[i], rects[i + 1],
+						rects[i + 2] - rects[i], rects[i + 3] - rects[i + 1])));
+			}
+			g.setClip(area);
+		}
+	}
+
+	public void clear() {
+		full = false;
+		count = 0;
+	}
+}
@@ -19,39 +19,567 @@
 package org.tuff.game;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
 
 public class GroupRenderer {
-	protected final int[][] groupData;
-	protected final Map<Integer, Integer> groupInfo;
 	protected final TuffMap map;
+	protected final int layer;
+	private final int width;
+	private final int height;
 
-	protected boolean hasBorder = false;
+	// Every tile is labeled with the id of its group, -1 for empty ones.
+	// Groups keep their size and the number of their border tiles, so that
+	// single tile changes can update them without labeling everything again
+	private final int[] visited;
+	private final int[] labels;
+	private final int[] parents;
+	private final int[] sizes;
+	private final int[] borders;
+	private int stamp = 0;
+	private int free = 0;
+
+	// Scratch space for fills and splits
+	private int[] members = new int[256];
+	private int memberCount = 0;
+	private int[] starts = new int[64];
+	private final int[][] searches = new int[4][64];
+	private final int[] searchHeads = new int[4];
+	private final int[] searchEnds = new int[4];
+	private final int[] searchSets = new int[4];
+	private int[] touched = new int[16];
+	private int touchedCount = 0;
 
 	public GroupRenderer(final TuffMap map) {
+		this(map, TileStore.GROUND);
+	}
+
+	protected GroupRenderer(final TuffMap map, final int layer) {
 		this.map = map;
-		groupData = new int[map.mapWidth][map.mapHeight];
-		groupInfo = new HashMap<Integer, Integer>();
+		this.layer = layer;
+		width = map.mapWidth;
+		height = map.mapHeight;
+		visited = new int[width * height];
+		labels = new int[width * height];
+		parents = new int[width * height];
+		sizes = new int[width * height];
+		borders = new int[width * height];
 	}
 
+	// Render ------------------------------------------------------------------
 	public final void render() {
-		int groupID = 0;
-		groupInfo.put(groupID, 0);
-		for (int y = 0; y < map.mapHeight; y++) {
-			for (int x = 0; x < map.mapWidth; x++) {
-				int type = map.mapData[y][x];
-				if (type > 0 && groupData[y][x] == 0) {
-					hasBorder = false;
-					groupID += 1;
-					groupInfo.put(groupID, checkSize(
-							group(y, x, groupID, type), hasBorder, type));
+		// Bands start at chunk rows so that no two of them ever write to the
+		// same chunk
+		final int chunks = (height + TileStore.CHUNK_MASK)
+				>> TileStore.CHUNK_SHIFT;
+		final int rows = ((chunks + MapRenderer.THREADS - 1)
+				/ MapRenderer.THREADS) << TileStore.CHUNK_SHIFT;
+
+		final List<Callable<Object>> label = new ArrayList<Callable<Object>>();
+		final List<Callable<Object>> write = new ArrayList<Callable<Object>>();
+		for (int y = 0; y < height; y += rows) {
+			final Band band = new Band(y, Math.min(y + rows, height));
+			label.add(new Callable<Object>() {
+				@Override
+				public Object call() {
+					band.label();
+					return null;
+				}
+			});
+			write.add(new Callable<Object>() {
+				@Override
+				public Object call() {
+					band.write();
+					return null;
 				}
+			});
+		}
+		MapRenderer.invokeAll(label);
+
+		for (int y = rows; y < height; y += rows) {
+			merge(y - 1, y);
+		}
+		MapRenderer.invokeAll(write);
+	}
+
+	private void merge(final int ya, final int yb) {
+		for (int x = 0; x < width; x++) {
+			final int type = map.tiles.get(TileStore.MAP, x, ya);
+			if (type > 0
+					&& matches(type, map.tiles.get(TileStore.MAP, x, yb))) {
+				union(find(labels[ya * width + x]),
+						find(labels[yb * width + x]));
 			}
 		}
 	}
 
+	private int find(int label) {
+		while (parents[label] != label) {
+			parents[label] = parents[parents[label]];
+			label = parents[label];
+		}
+		return label;
+	}
+
+	private int union(final int a, final int b) {
+		if (a != b) {
+			parents[b] = a;
+			sizes[a] += sizes[b];
+			borders[a] += borders[b];
+			sizes[b] = 0;
+			borders[b] = 0;
+		}
+		return a;
+	}
+
+	// Areas -------------------------------------------------------------------
+	// Only the groups which reach into one of the areas get labeled again.
+	// The old groups of those tiles are released before any new ones get
+	// created, so that no id is ever handed out twice
+	public final void render(final List<int[]> areas) {
+		stamp++;
+		memberCount = 0;
+		int groupCount = 0;
+		for (int[] area : areas) {
+			final int xs = Math.max(area[0], 0);
+			final int xm = Math.min(area[2], width);
+			final int ym = Math.min(area[3], height);
+			for (int y = Math.max(area[1], 0); y < ym; y++) {
+				for (int x = xs; x < xm; x++) {
+					final int i = y * width + x;
+					final int type = map.tiles.get(TileStore.MAP, x, y);
+					if (type == 0) {
+						release(i);
+						map.tiles.set(layer, x, y, 0);
+
+					} else if (visited[i] != stamp) {
+						if (groupCount == starts.length) {
+							starts = grow(starts);
+						}
+						starts[groupCount++] = memberCount;
+						collect(i, type);
+					}
+				}
+			}
+		}
+		for (int m = 0; m < memberCount; m++) {
+			release(members[m]);
+		}
+
+		for (int g = 0; g < groupCount; g++) {
+			final int start = starts[g];
+			final int end = g + 1 < groupCount ? starts[g + 1] : memberCount;
+			final int first = members[start];
+			final int type = map.tiles.get(TileStore.MAP, first % width, first
+					/ width);
+
+			final int id = allocate();
+			sizes[id] = end - start;
+			for (int m = start; m < end; m++) {
+				final int i = members[m];
+				labels[i] = id;
+				if (isBorder(i % width, i / width, type)) {
+					borders[id]++;
+				}
+			}
+
+			final int value = checkSize(sizes[id], borders[id] > 0, type);
+			for (int m = start; m < end; m++) {
+				final int i = members[m];
+				map.tiles.set(layer, i % width, i / width, value);
+			}
+		}
+	}
+
+	private void collect(final int start, final int type) {
+		int stackSize = 0;
+		int[] stack = searches[0];
+		visited[start] = stamp;
+		stack[stackSize++] = start;
+		while (stackSize > 0) {
+			final int i = stack[--stackSize];
+			if (memberCount == members.length) {
+				members = grow(members);
+			}
+			members[memberCount++] = i;
+
+			// Neighbours
+			if (stackSize + 4 > stack.length) {
+				stack = searches[0] = grow(stack);
+			}
+			final int x = i % width;
+			final int y = i / width;
+			if (x > 0 && compare(i - 1, x - 1, y, type)) {
+				stack[stackSize++] = i - 1;
+			}
+			if (x < width - 1 && compare(i + 1, x + 1, y, type)) {
+				stack[stackSize++] = i + 1;
+			}
+			if (y > 0 && compare(i - width, x, y - 1, type)) {
+				stack[stackSize++] = i - width;
+			}
+			if (y < height - 1 && compare(i + width, x, y + 1, type)) {
+				stack[stackSize++] = i + width;
+			}
+		}
+	}
+
+	private boolean compare(final int i, final int x, final int y,
+			final int type) {
+		if (visited[i] != stamp
+				&& matches(type, map.tiles.get(TileStore.MAP, x, y))) {
+			visited[i] = stamp;
+			return true;
+		}
+		return false;
+	}
+
+	// Changes -----------------------------------------------------------------
+	// Updates the groups after a single tile was changed from old to its
+	// current type
+	public final void change(final int x, final int y, final int old) {
+		final int i = y * width + x;
+		final int type = map.tiles.get(TileStore.MAP, x, y);
+		if (type == old) {
+			return;
+		}
+
+		// Borders of the tile and its neighbours as they were before
+		touchedCount = 0;
+		map.tiles.set(TileStore.MAP, x, y, old);
+		countBorders(x, y, -1);
+		map.tiles.set(TileStore.MAP, x, y, type);
+
+		// Tiles which still match their old group keep it
+		if (old == 0 || type == 0 || !matches(old, type)
+				|| !matches(type, old)) {
+			if (old != 0) {
+				final int id = labels[i];
+				labels[i] = -1;
+				sizes[id]--;
+				split(x, y, id);
+			}
+			if (type != 0) {
+				join(x, y, type);
+			}
+		}
+		countBorders(x, y, 1);
+
+		// Groups whose class changed get written again
+		touch(x - 1, y);
+		touch(x + 1, y);
+		touch(x, y - 1);
+		touch(x, y + 1);
+		for (int t = 0; t < touchedCount; t++) {
+			final int ti = touched[t];
+			final int id = labels[ti];
+			final int tx = ti % width;
+			final int ty = ti / width;
+			final int value = checkSize(sizes[id], borders[id] > 0,
+					map.tiles.get(TileStore.MAP, tx, ty));
+
+			if (map.tiles.get(layer, tx, ty) != value) {
+				paint(ti, id, value);
+			}
+		}
+		map.tiles.set(layer, x, y, type == 0 ? 0 : checkSize(sizes[labels[i]],
+				borders[labels[i]] > 0, type));
+	}
+
+	private void countBorders(final int x, final int y, final int add) {
+		countBorder(x, y, add);
+		countBorder(x - 1, y, add);
+		countBorder(x + 1, y, add);
+		countBorder(x, y - 1, add);
+		countBorder(x, y + 1, add);
+	}
+
+	private void countBorder(final int x, final int y, final int add) {
+		if (x >= 0 && y >= 0 && x < width && y < height) {
+			final int id = labels[y * width + x];
+			final int type = map.tiles.get(TileStore.MAP, x, y);
+			if (type != 0 && id != -1 && isBorder(x, y, type)) {
+				borders[id] += add;
+			}
+		}
+	}
+
+	private boolean isNear(final int i, final int x, final int y) {
+		final int dx = i % width - x;
+		final int dy = i / width - y;
+		return (dx < 0 ? -dx : dx) + (dy < 0 ? -dy : dy) <= 1;
+	}
+
+	private void touch(final int x, final int y) {
+		if (x >= 0 && y >= 0 && x < width && y < height
+				&& labels[y * width + x] != -1) {
+			if (touchedCount == touched.length) {
+				touched = grow(touched);
+			}
+			touched[touchedCount++] = y * width + x;
+		}
+	}
+
+	private void join(final int x, final int y, final int type) {
+		final int i = y * width + x;
+		int id = -1;
+		for (int n = 0; n < 4; n++) {
+			final int nx = x + (n == 0 ? -1 : n == 1 ? 1 : 0);
+			final int ny = y + (n == 2 ? -1 : n == 3 ? 1 : 0);
+			if (nx >= 0 && ny >= 0 && nx < width && ny < height
+					&& matches(type, map.tiles.get(TileStore.MAP, nx, ny))) {
+				final int ni = ny * width + nx;
+				final int other = labels[ni];
+				if (id == -1) {
+					id = other;
+					labels[i] = id;
+
+				} else if (other != id) {
+					// The smaller group is moved into the larger one, the
+					// new tile is what connects them
+					if (sizes[other] > sizes[id]) {
+						relabel(i, id, other);
+						id = other;
+
+					} else {
+						relabel(ni, other, id);
+					}
+				}
+			}
+		}
+		if (id == -1) {
+			id = allocate();
+		}
+		labels[i] = id;
+		sizes[id]++;
+	}
+
+	private void relabel(final int start, final int from, final int to) {
+		int stackSize = 0;
+		int[] stack = searches[0];
+		labels[start] = to;
+		stack[stackSize++] = start;
+		while (stackSize > 0) {
+			final int i = stack[--stackSize];
+			if (stackSize + 4 > stack.length) {
+				stack = searches[0] = grow(stack);
+			}
+			final int x = i % width;
+			final int y = i / width;
+			if (x > 0 && labels[i - 1] == from) {
+				labels[i - 1] = to;
+				stack[stackSize++] = i - 1;
+			}
+			if (x < width - 1 && labels[i + 1] == from) {
+				labels[i + 1] = to;
+				stack[stackSize++] = i + 1;
+			}
+			if (y > 0 && labels[i - width] == from) {
+				labels[i - width] = to;
+				stack[stackSize++] = i - width;
+			}
+			if (y < height - 1 && labels[i + width] == from) {
+				labels[i + width] = to;
+				stack[stackSize++] = i + width;
+			}
+		}
+		sizes[to] += sizes[from];
+		borders[to] += borders[from];
+		sizes[from] = 0;
+		borders[from] = 0;
+	}
+
+	// The neighbours of a removed tile are searched in turns, until all but
+	// one of them have either met or run out of tiles. Those which ran out
+	// on their own are split off into new groups
+	private void split(final int x, final int y, final int id) {
+		stamp++;
+		int count = 0;
+		for (int n = 0; n < 4; n++) {
+			final int nx = x + (n == 0 ? -1 : n == 1 ? 1 : 0);
+			final int ny = y + (n == 2 ? -1 : n == 3 ? 1 : 0);
+			if (nx >= 0 && ny >= 0 && nx < width && ny < height
+					&& labels[ny * width + nx] == id) {
+				final int ni = ny * width + nx;
+				visited[ni] = stamp;
+				parents[ni] = count;
+				searches[count][0] = ni;
+				searchEnds[count] = 1;
+				searchSets[count] = count;
+				count++;
+			}
+		}
+
+		final int[] heads = searchHeads;
+		Arrays.fill(heads, 0);
+		int sets = count;
+		while (sets > 1) {
+			for (int s = 0; s < count; s++) {
+				if (searchSets[s] != -1 && heads[s] < searchEnds[s]) {
+					step(s, heads[s]++, id);
+				}
+			}
+
+			// Sets which ran out of tiles are groups of their own now
+			for (int s = 0; s < count && sets > 1; s++) {
+				if (searchSets[s] == s && isDone(s, count, heads)) {
+					splitOff(s, count, x, y, id);
+					sets--;
+				}
+			}
+			sets = 0;
+			for (int s = 0; s < count; s++) {
+				if (searchSets[s] == s) {
+					sets++;
+				}
+			}
+		}
+	}
+
+	private void step(final int s, final int head, final int id) {
+		final int i = searches[s][head];
+		final int x = i % width;
+		final int y = i / width;
+		for (int n = 0; n < 4; n++) {
+			final int nx = x + (n == 0 ? -1 : n == 1 ? 1 : 0);
+			final int ny = y + (n == 2 ? -1 : n == 3 ? 1 : 0);
+			if (nx >= 0 && ny >= 0 && nx < width && ny < height) {
+				final int ni = ny * width + nx;
+				if (labels[ni] != id) {
+					continue;
+
+				} else if (visited[ni] != stamp) {
+					visited[ni] = stamp;
+					parents[ni] = s;
+					if (searchEnds[s] == searches[s].length) {
+						searches[s] = grow(searches[s]);
+					}
+					searches[s][searchEnds[s]++] = ni;
+
+				} else {
+					final int a = findSet(s);
+					final int b = findSet(parents[ni]);
+					if (a != b) {
+						searchSets[b] = a;
+					}
+				}
+			}
+		}
+	}
+
+	private int findSet(int s) {
+		while (searchSets[s] != s) {
+			s = searchSets[s];
+		}
+		return s;
+	}
+
+	private boolean isDone(final int set, final int count, final int[] heads) {
+		for (int s = 0; s < count; s++) {
+			if (searchSets[s] != -1 && findSet(s) == set
+					&& heads[s] < searchEnds[s]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void splitOff(final int set, final int count, final int x,
+			final int y, final int id) {
+		final int group = allocate();
+		for (int s = 0; s < count; s++) {
+			if (searchSets[s] != -1 && findSet(s) == set) {
+				for (int e = 0; e < searchEnds[s]; e++) {
+					final int i = searches[s][e];
+					labels[i] = group;
+					sizes[group]++;
+
+					// The tiles next to the change get counted afterwards
+					if (!isNear(i, x, y)
+							&& isBorder(i % width, i / width,
+									map.tiles.get(TileStore.MAP, i % width, i
+											/ width))) {
+						borders[group]++;
+					}
+				}
+			}
+		}
+		for (int s = 0; s < count; s++) {
+			if (searchSets[s] != -1) {
+				searchSets[s] = findSet(s);
+			}
+		}
+		for (int s = 0; s < count; s++) {
+			if (searchSets[s] == set) {
+				searchSets[s] = -1;
+			}
+		}
+		sizes[id] -= sizes[group];
+		borders[id] -= borders[group];
+	}
+
+	private void paint(final int start, final int id, final int value) {
+		stamp++;
+		int stackSize = 0;
+		int[] stack = searches[0];
+		visited[start] = stamp;
+		stack[stackSize++] = start;
+		while (stackSize > 0) {
+			final int i = stack[--stackSize];
+			final int x = i % width;
+			final int y = i / width;
+			map.tiles.set(layer, x, y, value);
+			if (stackSize + 4 > stack.length) {
+				stack = searches[0] = grow(stack);
+			}
+			if (x > 0 && labels[i - 1] == id && visited[i - 1] != stamp) {
+				visited[i - 1] = stamp;
+				stack[stackSize++] = i - 1;
+			}
+			if (x < width - 1 && labels[i + 1] == id
+					&& visited[i + 1] != stamp) {
+				visited[i + 1] = stamp;
+				stack[stackSize++] = i + 1;
+			}
+			if (y > 0 && labels[i - width] == id
+					&& visited[i - width] != stamp) {
+				visited[i - width] = stamp;
+				stack[stackSize++] = i - width;
+			}
+			if (y < height - 1 && labels[i + width] == id
+					&& visited[i + width] != stamp) {
+				visited[i + width] = stamp;
+				stack[stackSize++] = i + width;
+			}
+		}
+	}
+
+	// Ids -------------------------------------------------------------------
+	private int allocate() {
+		while (sizes[free] != 0) {
+			free = free + 1 == sizes.length ? 0 : free + 1;
+		}
+		borders[free] = 0;
+		return free;
+	}
+
+	private void release(final int i) {
+		final int id = labels[i];
+		if (id != -1) {
+			sizes[id] = 0;
+			borders[id] = 0;
+			labels[i] = -1;
+		}
+	}
+
+	private int[] grow(final int[] data) {
+		final int[] grown = new int[data.length * 2];
+		System.arraycopy(data, 0, grown, 0, data.length);
+		return grown;
+	}
+
+	// Groups ------------------------------------------------------------------
 	protected int checkSize(final int size, final boolean border, final int type) {
 		int g = 0;
 		if (size > 300) {
@@ -66,71 +594,82 @@ public class GroupRenderer {
 		return g;
 	}
 
-	protected boolean compare(final int x, final int y, final int type) {
-		return map.mapData[x][y] != 0 && groupData[x][y] == 0;
+	protected boolean matches(final int type, final int other) {
+		return other != 0;
 	}
 
-	protected void set(final int x, final int y, final int type, final int group) {
-		groupData[x][y] = group;
+	protected boolean isBorder(final int x, final int y, final int type) {
+		return false;
 	}
 
-	private final int group(final int xi, final int yi, final int group,
-			final int type) {
-		int groupSize = 0;
-		final List<int[]> list = new ArrayList<int[]>();
-		list.add(new int[] { xi, yi });
-		int size = 1;
-		while (size > 0) {
-			final int[] i = list.remove(list.size() - 1);
-			final int xp = i[0];
-			final int y = i[1];
-			if (compare(xp, y, type)) {
-				// Left
-				for (int x = xp; x >= 0; x--) {
-					if (compare(x, y, type)) {
-						set(x, y, type, group);
-						// groupData[x][y] = group;
-						groupSize++;
-
-						// Up
-						if (y - 1 >= 0 && compare(x, y - 1, type)) {
-							list.add(new int[] { x, y - 1 });
-						}
+	private final class Band {
+		private final int ys;
+		private final int ym;
 
-						// Down
-						if (y + 1 <= map.mapHeight - 1
-								&& compare(x, y + 1, type)) {
-							list.add(new int[] { x, y + 1 });
-						}
-					} else {
-						break;
+		Band(final int ys, final int ym) {
+			this.ys = ys;
+			this.ym = ym;
+		}
+
+		// First pass, every tile joins the group of its left and upper
+		// neighbour
+		void label() {
+			Arrays.fill(sizes, ys * width, ym * width, 0);
+			Arrays.fill(borders, ys * width, ym * width, 0);
+			for (int y = ys; y < ym; y++) {
+				for (int x = 0; x < width; x++) {
+					final int type = map.tiles.get(TileStore.MAP, x, y);
+					if (type == 0) {
+						continue;
 					}
-				}
 
-				// Right
-				for (int x = xp + 1; x <= map.mapWidth - 1; x++) {
-					if (compare(x, y, type)) {
-						// groupData[x][y] = group;
-						set(x, y, type, group);
-						groupSize++;
+					final int i = y * width + x;
+					int group = -1;
+					if (x > 0 && matches(type,
+							map.tiles.get(TileStore.MAP, x - 1, y))) {
+						group = find(labels[i - 1]);
+					}
+					if (y > ys && matches(type,
+							map.tiles.get(TileStore.MAP, x, y - 1))) {
+						final int up = find(labels[i - width]);
+						group = group == -1 ? up : union(group, up);
+					}
+					if (group == -1) {
+						group = i;
+						parents[i] = i;
+					}
+					labels[i] = group;
+					sizes[group]++;
+					if (isBorder(x, y, type)) {
+						borders[group]++;
+					}
+				}
+			}
+		}
 
-						// Up
-						if (y - 1 >= 0 && compare(x, y - 1, type)) {
-							list.add(new int[] { x, y - 1 });
-						}
+		// Second pass, after all bands have been merged
+		void write() {
+			for (int y = ys; y < ym; y++) {
+				for (int x = 0; x < width; x++) {
+					final int i = y * width + x;
+					final int type = map.tiles.get(TileStore.MAP, x, y);
+					if (type == 0) {
+						labels[i] = -1;
+						map.tiles.set(layer, x, y, 0);
 
-						// Down
-						if (y + 1 <= map.mapHeight - 1
-								&& compare(x, y + 1, type)) {
-							list.add(new int[] { x, y + 1 });
-						}
 					} else {
-						break;
+						// Nothing is merged anymore, so walking up without
+						// compressing is safe from all bands at once
+						int root = labels[i];
+						while (parents[root] != root) {
+							root = parents[root];
+						}
+						labels[i] = root;
+						map.tiles.set(layer, x, y, checkSize(sizes[root],
+								borders[root] > 0, type));
 					}
 				}
 			}
-			size = list.size();
 		}
-		return groupSize;
 	}
 }
@@ -21,7 +21,7 @@ package org.tuff.game;
 public class GroupSoundRenderer extends GroupRenderer {
 
 	public GroupSoundRenderer(final TuffMap map) {
-		super(map);
+		super(map, TileStore.SOUND);
 	}
 
 	@Override
@@ -39,26 +39,24 @@ public class GroupSoundRenderer extends GroupRenderer {
 	}
 
 	@Override
-	protected void set(final int x, final int y, final int type, final int group) {
-		groupData[x][y] = group;
-		if (!hasBorder) {
-			int cl = map.getAt(x - 1, y);
-			int cr = map.getAt(x + 1, y);
-			int cu = map.getAt(x, y - 1);
-			int cd = map.getAt(x, y + 1);
-			if (type == 2 && (cl == 0 || cr == 0 || cu == 0 || cd == 0)) {
-				hasBorder = true;
-			}
-			if (type == 4 && (cl == 0 || cr == 0 || cu == 0 || cd == 0)) {
-				hasBorder = true;
-			} else if (type == 4 && (cl == 2 || cr == 2 || cu == 2 || cd == 2)) {
-				hasBorder = true;
-			}
+	protected boolean isBorder(final int x, final int y, final int type) {
+		int cl = map.getAt(x - 1, y);
+		int cr = map.getAt(x + 1, y);
+		int cu = map.getAt(x, y - 1);
+		int cd = map.getAt(x, y + 1);
+		if (type == 2 && (cl == 0 || cr == 0 || cu == 0 || cd == 0)) {
+			return true;
+		}
+		if (type == 4 && (cl == 0 || cr == 0 || cu == 0 || cd == 0)) {
+			return true;
+		} else if (type == 4 && (cl == 2 || cr == 2 || cu == 2 || cd == 2)) {
+			return true;
 		}
+		return false;
 	}
 
 	@Override
-	protected boolean compare(final int x, final int y, final int type) {
-		return map.mapData[x][y] == type && groupData[x][y] == 0;
+	protected boolean matches(final int type, final int other) {
+		return other == type;
 	}
 }
@@ -0,0 +1,356 @@
+/**
+ *  This file is part of Tuff.
+ *
+ *  Tuff is free software: you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Tuff is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along with
+ *  Tuff. If not, see <http://www.gnu.org/licenses/>.
+ *  
+ */
+
+package org.tuff.game;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class LevelFile {
+	// Sections, each one is prefixed by its tag and length in bytes
+	private static final int MAP = tag("MAP ") & ~0xFF;
+	private static final int COL = tag("COL ") & ~0xFF;
+	private static final int OBJ = tag("OBJ ");
+	private static final int END = tag("END ");
+	private static final int OBJECT_SIZE = 14;
+
+	// Layer encodings, stored in the last byte of the layer's tag
+	private static final int ENCODING = 0xFF;
+	private static final int RAW = ' ';
+	private static final int RUNS = 'R';
+	private static final int BITS = 'B';
+
+	private final TuffMap map;
+
+	public LevelFile(TuffMap map) {
+		this.map = map;
+	}
+
+	private static int tag(String name) {
+		return name.charAt(0) << 24 | name.charAt(1) << 16
+				| name.charAt(2) << 8 | name.charAt(3);
+	}
+
+	// Files -------------------------------------------------------------------
+	public static ByteBuffer readFile(File file) throws IOException {
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			FileChannel channel = stream.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+			while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+			}
+			buffer.flip();
+			return buffer;
+
+		} finally {
+			stream.close();
+		}
+	}
+
+	public static ByteBuffer readStream(InputStream stream) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(65536);
+			byte[] bytes = new byte[65536];
+			int read;
+			while ((read = stream.read(bytes)) != -1) {
+				out.write(bytes, 0, read);
+			}
+			return ByteBuffer.wrap(out.toByteArray());
+
+		} finally {
+			stream.close();
+		}
+	}
+
+	// Read --------------------------------------------------------------------
+	public boolean read(ByteBuffer in) {
+		try {
+			if (!header(in, "TUFF")) {
+				return false;
+			}
+			final char version = in.getChar();
+			if (version != '2' && version != '3') {
+				return false;
+			}
+			map.mapWidth = in.getInt();
+			map.mapHeight = in.getInt();
+			map.startX = in.getInt();
+			map.startY = in.getInt();
+			map.tiles = new TileStore(map.mapWidth, map.mapHeight);
+			map.mapObjects = new ArrayList<int[]>();
+			map.shardCount = 0;
+			return version == '2' ? readLegacy(in) : readSections(in);
+
+		} catch (BufferUnderflowException e) {
+			return false;
+
+		} catch (IllegalArgumentException e) {
+			return false;
+
+		} catch (IndexOutOfBoundsException e) {
+			return false;
+		}
+	}
+
+	private boolean header(ByteBuffer in, String name) {
+		for (int i = 0; i < name.length(); i++) {
+			if (in.getChar() != name.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean readSections(ByteBuffer in) {
+		while (in.remaining() >= 8) {
+			final int tag = in.getInt();
+			final int end = in.getInt() + in.position();
+			if (tag == END) {
+				return true;
+
+			} else if ((tag & ~ENCODING) == MAP) {
+				if (!readLayer(in, TileStore.MAP, tag & ENCODING)) {
+					return false;
+				}
+
+			} else if ((tag & ~ENCODING) == COL) {
+				if (!readLayer(in, TileStore.COL, tag & ENCODING)) {
+					return false;
+				}
+
+			} else if (tag == OBJ) {
+				final int count = in.getInt();
+				for (int i = 0; i < count; i++) {
+					final int tree = in.get();
+					final int type = in.get();
+					final int x = in.getInt();
+					final int y = in.getInt();
+					final int extra = in.getInt();
+					addObject(tree, x, y, type, extra);
+				}
+			}
+			in.position(end);
+		}
+		return false;
+	}
+
+	private boolean readLayer(ByteBuffer in, int layer, int encoding) {
+		final byte[] plane = new byte[map.mapWidth * map.mapHeight];
+		if (encoding == RAW) {
+			in.get(plane);
+
+		} else if (encoding == RUNS) {
+			for (int i = 0; i < plane.length;) {
+				final byte value = in.get();
+				final int run = readLength(in);
+				if (run <= 0 || i + run > plane.length) {
+					return false;
+				}
+				Arrays.fill(plane, i, i + run, value);
+				i += run;
+			}
+
+		} else if (encoding == BITS) {
+			for (int i = 0; i < plane.length; i += 8) {
+				final int bits = in.get();
+				for (int b = 0; b < 8 && i + b < plane.length; b++) {
+					plane[i + b] = (byte) (bits >> b & 1);
+				}
+			}
+
+		} else {
+			return false;
+		}
+		map.tiles.setLayer(layer, plane);
+		return true;
+	}
+
+	private int readLength(ByteBuffer in) {
+		int length = 0;
+		int b;
+		int shift = 0;
+		do {
+			b = in.get();
+			length |= (b & 0x7F) << shift;
+			shift += 7;
+
+		} while ((b & 0x80) != 0 && shift < 32);
+		return length;
+	}
+
+	private boolean readLegacy(ByteBuffer in) {
+		// Data
+		if (!header(in, "MAP")) {
+			return false;
+		}
+		if (!readLayer(in, TileStore.MAP, RAW)) {
+			return false;
+		}
+
+		// Col data
+		if (!header(in, "COL")) {
+			return false;
+		}
+		final int colCount = in.getInt();
+		for (int i = 0; i < colCount; i++) {
+			final int x = in.getInt();
+			map.tiles.set(TileStore.COL, x, in.getInt(), 1);
+		}
+
+		// Objects
+		if (!header(in, "OBJ")) {
+			return false;
+		}
+		final int objectCount = in.getInt();
+		for (int i = 0; i < objectCount; i++) {
+			final int tree = in.get();
+			final int type = in.get();
+			final int x = in.getInt();
+			final int y = in.getInt();
+			int extra = 0;
+			if (tree != 1 && type == 0) {
+				extra = in.get();
+
+			} else if (tree != 1 && type == 5) {
+				extra = in.getInt();
+			}
+			addObject(tree, x, y, type, extra);
+		}
+		return true;
+	}
+
+	private void addObject(int tree, int x, int y, int type, int extra) {
+		if (tree == 1) {
+			map.addMapObjectDirect(1, x, y, type, 0);
+
+		} else {
+			if (type == 0 || type == 5) {
+				map.addMapObjectDirect(0, x, y, type, extra);
+
+			} else if (type >= 1) {
+				map.addMapObjectDirect(0, x, y, type, 0);
+				if (type == 2) {
+					map.shardCount++;
+				}
+			}
+		}
+	}
+
+	// Write -------------------------------------------------------------------
+	public void write(DataOutputStream out) throws IOException {
+		// Header
+		out.writeChars("TUFF3");
+		out.writeInt(map.mapWidth);
+		out.writeInt(map.mapHeight);
+		out.writeInt(map.startX);
+		out.writeInt(map.startY);
+
+		// Data
+		writeLayer(out, MAP, TileStore.MAP);
+		writeLayer(out, COL, TileStore.COL);
+
+		// Objects
+		out.writeInt(OBJ);
+		out.writeInt(4 + map.mapObjects.size() * OBJECT_SIZE);
+		out.writeInt(map.mapObjects.size());
+		for (int[] p : map.mapObjects) {
+			out.writeByte(p[0]);
+			if (p[0] == 0) {
+				out.writeByte(p[3] == 4 ? 3 : p[3]);
+				out.writeInt(p[1]);
+				out.writeInt(p[2]);
+				out.writeInt(p[3] == 0 || p[3] == 5 ? p[4] : 0);
+
+			} else {
+				out.writeByte(p[3]);
+				out.writeInt(p[1]);
+				out.writeInt(p[2]);
+				out.writeInt(0);
+			}
+		}
+
+		out.writeInt(END);
+		out.writeInt(0);
+	}
+
+	// Layers are written with whichever encoding comes out smallest
+	private void writeLayer(DataOutputStream out, int tag, int layer)
+			throws IOException {
+		final byte[] plane = map.tiles.getLayer(layer);
+		byte[] data = plane;
+		int encoding = RAW;
+
+		final byte[] runs = encodeRuns(plane);
+		if (runs.length < data.length) {
+			data = runs;
+			encoding = RUNS;
+		}
+
+		final byte[] bits = encodeBits(plane);
+		if (bits != null && bits.length < data.length) {
+			data = bits;
+			encoding = BITS;
+		}
+
+		out.writeInt(tag | encoding);
+		out.writeInt(data.length);
+		out.write(data);
+	}
+
+	private byte[] encodeRuns(byte[] plane) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+		for (int i = 0; i < plane.length;) {
+			final byte value = plane[i];
+			int run = 1;
+			while (i + run < plane.length && plane[i + run] == value) {
+				run++;
+			}
+			i += run;
+			out.write(value);
+			while (run > 0x7F) {
+				out.write(run & 0x7F | 0x80);
+				run >>>= 7;
+			}
+			out.write(run);
+		}
+		return out.toByteArray();
+	}
+
+	// Only layers which contain nothing but 0 and 1 can be stored as bits
+	private byte[] encodeBits(byte[] plane) {
+		final byte[] bits = new byte[(plane.length + 7) / 8];
+		for (int i = 0; i < plane.length; i++) {
+			if (plane[i] == 1) {
+				bits[i >> 3] |= 1 << (i & 7);
+
+			} else if (plane[i] != 0) {
+				return null;
+			}
+		}
+		return bits;
+	}
+}
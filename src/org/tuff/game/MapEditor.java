@@ -18,7 +18,6 @@
 
 package org.tuff.game;
 
-import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Composite;
@@ -60,7 +59,7 @@ public class MapEditor extends GameObject<Tuff> {
 
 	// Edit
 	private TuffMap map;
-	private ArrayList<int[][]> undoData = new ArrayList<int[][]>();
+	private ArrayList<byte[]> undoData = new ArrayList<byte[]>();
 	private String[] editModes = new String[] { "NORMAL", "BACKGROUND",
 			"BREAKABLE", "WATER", "COLLISION" };
 
@@ -201,68 +200,17 @@ public class MapEditor extends GameObject<Tuff> {
 					new FileOutputStream(file));
 			DataOutputStream out = new DataOutputStream(stream);
 
-			// Header
-			out.writeChars("TUFF2");
-			out.writeInt(map.mapWidth);
-			out.writeInt(map.mapHeight);
-			out.writeInt(map.startX);
-			out.writeInt(map.startY);
-
-			// Data
-			out.writeChars("MAP");
+			// Header, Data and Objects
+			new LevelFile(map).write(out);
 			int colCount = 0;
 			for (int y = 0; y < map.mapHeight; y++) {
 				for (int x = 0; x < map.mapWidth; x++) {
-					out.writeByte(map.mapData[x][y]);
-					if (map.colData[x][y] == 1) {
+					if (map.tiles.get(TileStore.COL, x, y) == 1) {
 						colCount++;
 					}
 				}
 			}
 
-			// Coldata
-			out.writeChars("COL");
-			out.writeInt(colCount);
-			for (int y = 0; y < map.mapHeight; y++) {
-				for (int x = 0; x < map.mapWidth; x++) {
-					if (map.colData[x][y] == 1) {
-						out.writeInt(x);
-						out.writeInt(y);
-					}
-				}
-			}
-
-			// Objects
-			out.writeChars("OBJ");
-			out.writeInt(map.mapObjects.size());
-			for (int[] p : map.mapObjects) {
-				out.writeByte(p[0]);
-				if (p[0] == 0) {
-					out.writeByte(p[3] == 4 ? 3 : p[3]);
-					out.writeInt(p[1]);
-					out.writeInt(p[2]);
-					if (p[3] == 0) {
-						out.writeByte(p[4]);
-					}
-					if (p[3] == 5) {
-						out.writeInt(p[4]);
-					}
-				} else {
-					out.writeByte(p[3]);
-					out.writeInt(p[1]);
-					out.writeInt(p[2]);
-				}
-			}
-
-			// // Trees
-			// out.writeChars("TRE");
-			// out.writeInt(map.trees.size());
-			// for (int[] tree : map.trees) {
-			// out.writeInt(tree[0]);
-			// out.writeInt(tree[1]);
-			// out.writeByte(tree[2]);
-			// }
-
 			out.close();
 			stream.close();
 			System.out.println("Saved: " + filename);
@@ -319,28 +267,30 @@ public class MapEditor extends GameObject<Tuff> {
 			if (tx != oldTX || ty != oldTY) {
 				if (editMode < 4) {
 					if (input.mouseDown(MouseEvent.BUTTON1)) {
-						map.mapData[tx][ty] = (byte) (1 + editMode);
-						map.drawData[tx][ty] = (byte) (1 + editMode);
+						map.tiles.set(TileStore.MAP, tx, ty, 1 + editMode);
+						map.invalidate(tx, ty, tx + 1, ty + 1);
+						map.tiles.set(TileStore.DRAW, tx, ty, 1 + editMode);
 						edited = true;
-						if (map.mapData[tx][ty] != 1) {
-							map.colData[tx][ty] = 0;
+						if (map.tiles.get(TileStore.MAP, tx, ty) != 1) {
+							map.tiles.set(TileStore.COL, tx, ty, 0);
 						}
 					} else if (input.mouseDown(MouseEvent.BUTTON3)) {
-						map.mapData[tx][ty] = (byte) editMode2;
-						map.drawData[tx][ty] = (byte) editMode2;
+						map.tiles.set(TileStore.MAP, tx, ty, editMode2);
+						map.invalidate(tx, ty, tx + 1, ty + 1);
+						map.tiles.set(TileStore.DRAW, tx, ty, editMode2);
 						edited = true;
-						if (map.mapData[tx][ty] != 1) {
-							map.colData[tx][ty] = 0;
+						if (map.tiles.get(TileStore.MAP, tx, ty) != 1) {
+							map.tiles.set(TileStore.COL, tx, ty, 0);
 						}
 					}
 
 				} else if (editMode == 4) {
 					if (input.mouseDown(MouseEvent.BUTTON1)
-							&& map.mapData[tx][ty] == 1) {
-						map.colData[tx][ty] = 1;
+							&& map.tiles.get(TileStore.MAP, tx, ty) == 1) {
+						map.tiles.set(TileStore.COL, tx, ty, 1);
 						edited = true;
 					} else if (input.mouseDown(MouseEvent.BUTTON3)) {
-						map.colData[tx][ty] = 0;
+						map.tiles.set(TileStore.COL, tx, ty, 0);
 						edited = true;
 					}
 				}
@@ -520,12 +470,13 @@ public class MapEditor extends GameObject<Tuff> {
 
 			// Fill
 			if (input.keyPressed(java.awt.event.KeyEvent.VK_F3)) {
-				fill(tx, ty, editMode2, map.mapData[tx][ty]);
-				map.render();
+				fill(tx, ty, editMode2, map.tiles.get(TileStore.MAP, tx, ty));
+				map.update();
 			}
 			if (input.keyPressed(java.awt.event.KeyEvent.VK_F4)) {
-				fill(tx, ty, editMode + 1, map.mapData[tx][ty]);
-				map.render();
+				fill(tx, ty, editMode + 1,
+						map.tiles.get(TileStore.MAP, tx, ty));
+				map.update();
 			}
 
 			// Mode
@@ -555,29 +506,19 @@ public class MapEditor extends GameObject<Tuff> {
 		// Render Map
 		if (changed && !input.mouseDown(MouseEvent.BUTTON1)
 				&& !input.mouseDown(MouseEvent.BUTTON3)) {
-			map.render();
+			map.update();
 			changed = false;
 		}
 	}
 
 	public void saveUndo() {
-		int[][] undo = new int[map.mapWidth][map.mapHeight];
-		for (int y = 0; y < map.mapHeight; y++) {
-			for (int x = 0; x < map.mapWidth; x++) {
-				undo[x][y] = map.mapData[x][y];
-			}
-		}
-		undoData.add(undo);
+		undoData.add(map.tiles.getLayer(TileStore.MAP));
 	}
 
 	public void loadUndo() {
 		if (undoData.size() > 0) {
-			int[][] undo = undoData.remove(undoData.size() - 1);
-			for (int y = 0; y < map.mapHeight; y++) {
-				for (int x = 0; x < map.mapWidth; x++) {
-					map.mapData[x][y] = (byte) undo[x][y];
-				}
-			}
+			map.tiles.setLayer(TileStore.MAP,
+					undoData.remove(undoData.size() - 1));
 			map.render();
 		}
 	}
@@ -591,20 +532,22 @@ public class MapEditor extends GameObject<Tuff> {
 				int[] i = list.remove(0);
 				int x = i[0];
 				int y = i[1];
-				if (map.mapData[x][y] == replace) {
+				if (map.tiles.get(TileStore.MAP, x, y) == replace) {
 					int xp = x;
 					while (x >= 0) {
-						if (map.mapData[x][y] == replace) {
-							map.mapData[x][y] = (byte) type;
+						if (map.tiles.get(TileStore.MAP, x, y) == replace) {
+							map.tiles.set(TileStore.MAP, x, y, type);
+							map.invalidate(x, y, x + 1, y + 1);
 
 							// Up
-							if (y - 1 >= 0 && map.mapData[x][y - 1] == replace) {
+							if (y - 1 >= 0
+									&& map.tiles.get(TileStore.MAP, x, y - 1) == replace) {
 								list.add(new int[] { x, y - 1 });
 							}
 
 							// Down
 							if (y + 1 <= map.mapHeight - 1
-									&& map.mapData[x][y + 1] == replace) {
+									&& map.tiles.get(TileStore.MAP, x, y + 1) == replace) {
 								list.add(new int[] { x, y + 1 });
 							}
 
@@ -615,17 +558,19 @@ public class MapEditor extends GameObject<Tuff> {
 					}
 					x = xp + 1;
 					while (x <= map.mapWidth - 1) {
-						if (map.mapData[x][y] == replace) {
-							map.mapData[x][y] = (byte) type;
+						if (map.tiles.get(TileStore.MAP, x, y) == replace) {
+							map.tiles.set(TileStore.MAP, x, y, type);
+							map.invalidate(x, y, x + 1, y + 1);
 
 							// Up
-							if (y - 1 >= 0 && map.mapData[x][y - 1] == replace) {
+							if (y - 1 >= 0
+									&& map.tiles.get(TileStore.MAP, x, y - 1) == replace) {
 								list.add(new int[] { x, y - 1 });
 							}
 
 							// Down
 							if (y + 1 <= map.mapHeight - 1
-									&& map.mapData[x][y + 1] == replace) {
+									&& map.tiles.get(TileStore.MAP, x, y + 1) == replace) {
 								list.add(new int[] { x, y + 1 });
 							}
 
@@ -660,8 +605,7 @@ public class MapEditor extends GameObject<Tuff> {
 					giantMap = true;
 				}
 			} else {
-				g.setComposite(AlphaComposite.getInstance(
-						AlphaComposite.SRC_OVER, 0.75f));
+				g.setComposite(Composites.get(0.75f));
 				if (giantMap) {
 					refreshMap(false);
 					giantMap = false;
@@ -685,9 +629,9 @@ public class MapEditor extends GameObject<Tuff> {
 			for (int x = 0; x < map.mapWidth; x++) {
 				int xp = x;
 				int yp = y;
-				int tile = map.mapData[x][y];
+				int tile = map.tiles.get(TileStore.MAP, x, y);
 				if (tile > 0) {
-					if (map.colData[x][y] == 1) {
+					if (map.tiles.get(TileStore.COL, x, y) == 1) {
 						g.setColor(Color.LIGHT_GRAY);
 					} else if (tile == 1) {
 						g.setColor(Color.WHITE);
@@ -753,10 +697,11 @@ public class MapEditor extends GameObject<Tuff> {
 
 	// Trees -------------------------------------------------------------------
 	private boolean treeFree(int x, int y) {
-		if (x < 0 || y < 0 || x > map.mapWidth - 1 || y > map.mapWidth - 1) {
+		if (x < 0 || y < 0 || x > map.mapWidth - 1 || y > map.mapHeight - 1) {
 			return true;
 		} else {
-			return map.mapData[x][y] == 1 && map.colData[x][y] == 0;
+			return map.tiles.get(TileStore.MAP, x, y) == 1
+					&& map.tiles.get(TileStore.COL, x, y) == 0;
 		}
 	}
 
@@ -799,6 +744,7 @@ public class MapEditor extends GameObject<Tuff> {
 				}
 			}
 			map.updateLocal();
+			map.repaint(x - 1, y - 1, x + 2, y + 2);
 		}
 	}
 
@@ -806,6 +752,7 @@ public class MapEditor extends GameObject<Tuff> {
 		int id = getTreeAt(x, y);
 		if (id != -1) {
 			map.removeObject(id);
+			map.repaint(x - 1, y - 1, x + 2, y + 2);
 			treeEdit = -1;
 		}
 	}
@@ -910,6 +857,7 @@ public class MapEditor extends GameObject<Tuff> {
 				} else {
 					p[1] = x;
 					p[2] = y;
+					map.objectsChanged();
 					map.updateLocal();
 					return;
 				}
@@ -980,6 +928,7 @@ public class MapEditor extends GameObject<Tuff> {
 				} else {
 					p[1] = x;
 					p[2] = y;
+					map.objectsChanged();
 					map.updateLocal();
 					return;
 				}
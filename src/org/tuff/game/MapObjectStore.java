@@ -0,0 +1,77 @@
+/**
+ *  This file is part of Tuff.
+ *
+ *  Tuff is free software: you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Tuff is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along with
+ *  Tuff. If not, see <http://www.gnu.org/licenses/>.
+ *  
+ */
+
+package org.tuff.game;
+
+public class MapObjectStore {
+	// Kinds, warps are one kind whether they're active or not
+	public static final int POWERUP = 0;
+	public static final int SAVE = 1;
+	public static final int SHARD = 2;
+	public static final int WARP = 3;
+	public static final int BLOCK = 4;
+	public static final int SWITCH = 5;
+	public static final int KINDS = 6;
+
+	// Objects are shared with the map and changed in place, each kind is
+	// kept in a dense list in the order they were added
+	private final int[][][] objects = new int[KINDS][16][];
+	private final int[] sizes = new int[KINDS];
+
+	// Objects are int[] { tree, x, y, subtype, extra, state }
+	public static int kind(final int[] object) {
+		final int subtype = object[3];
+		if (subtype >= 6) {
+			return SWITCH;
+
+		} else if (subtype == 5) {
+			return BLOCK;
+
+		} else if (subtype == 4) {
+			return WARP;
+		}
+		return subtype;
+	}
+
+	public int size(final int kind) {
+		return sizes[kind];
+	}
+
+	public int[] get(final int kind, final int i) {
+		return objects[kind][i];
+	}
+
+	public void add(final int[] object) {
+		final int kind = kind(object);
+		if (sizes[kind] == objects[kind].length) {
+			final int[][] grown = new int[sizes[kind] * 2][];
+			System.arraycopy(objects[kind], 0, grown, 0, sizes[kind]);
+			objects[kind] = grown;
+		}
+		objects[kind][sizes[kind]++] = object;
+	}
+
+	public void clear() {
+		for (int kind = 0; kind < KINDS; kind++) {
+			for (int i = 0; i < sizes[kind]; i++) {
+				objects[kind][i] = null;
+			}
+			sizes[kind] = 0;
+		}
+	}
+}
@@ -18,13 +18,30 @@
 
 package org.tuff.game;
 
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
-public class MapRenderer {
+public class MapRenderer implements TileStore.ChunkRenderer {
 	private TuffMap map;
+	private final GroupRenderer ground;
+	private final GroupRenderer sound;
+	private final List<int[]> dirty = new ArrayList<int[]>();
+
+	// Threads
+	protected static final int THREADS = Runtime.getRuntime()
+			.availableProcessors();
+	private static ExecutorService executor;
 
 	public MapRenderer(TuffMap map) {
 		this.map = map;
+		ground = new GroupRenderer(map);
+		sound = new GroupSoundRenderer(map);
 	}
 
 	// Render ------------------------------------------------------------------
@@ -33,14 +50,15 @@ public class MapRenderer {
 		ys = ys < 0 ? 0 : ys;
 		xm = xm > map.mapWidth ? map.mapWidth : xm;
 		ym = ym > map.mapHeight ? map.mapHeight : ym;
+		final TileStore tiles = map.tiles;
 		for (int y = ys; y < ym; y++) {
 			for (int x = xs; x < xm; x++) {
-				if (map.mapData[x][y] == 0) {
-					map.drawData[x][y] = 0;
-					map.groundData[x][y] = 0;
-					map.overlayData[x][y] = 0;
-					map.overlayTransparentData[x][y] = 0;
-					map.borderData[x][y] = 0;
+				if (tiles.get(TileStore.MAP, x, y) == 0) {
+					tiles.set(TileStore.DRAW, x, y, 0);
+					tiles.set(TileStore.GROUND, x, y, 0);
+					tiles.set(TileStore.OVERLAY, x, y, 0);
+					tiles.set(TileStore.OVERLAY_TRANSPARENT, x, y, 0);
+					tiles.set(TileStore.BORDER, x, y, 0);
 				}
 				setTypeData(x, y, transparent);
 			}
@@ -49,121 +67,241 @@ public class MapRenderer {
 
 	public void render() {
 		// long time = System.nanoTime(); // 45
-		GroupRenderer ground = new GroupRenderer(map);
 		ground.render();
-
-		Map<Integer, Integer> groupGround = ground.groupInfo;
-		int[][] groupData = ground.groupData;
 		// System.out.println((System.nanoTime() - time) / 1000000);
 
 		// time = System.nanoTime(); // 36
-		GroupSoundRenderer sound = new GroupSoundRenderer(map);
 		sound.render();
-		Map<Integer, Integer> groupSound = sound.groupInfo;
-		int[][] groupSoundData = sound.groupData;
 		// System.out.println((System.nanoTime() - time) / 1000000);
 
-		// 55
-		// time = System.nanoTime();
-		for (int y = 0; y < map.mapHeight; y++) {
-			for (int x = 0; x < map.mapWidth; x++) {
-				map.drawData[y][x] = 0;
-				map.borderData[y][x] = 0;
-				setTypeData(y, x, false);
-				int g = groupGround.get(groupData[y][x]);
-				map.groundData[y][x] = (byte) g;
-				int s = groupSound.get(groupSoundData[y][x]);
-				map.soundData[y][x] = (byte) s;
+		// Tiles get rendered chunk by chunk once they're needed
+		dirty.clear();
+		map.tiles.invalidate();
+	}
+
+	// Single tiles keep their groups up to date without labeling the map
+	public void change(int x, int y, int old) {
+		redraw(x - 1, y - 1, x + 2, y + 2, false);
+		ground.change(x, y, old);
+		sound.change(x, y, old);
+	}
+
+	// Dirty -------------------------------------------------------------------
+	public void invalidate(int xs, int ys, int xm, int ym) {
+		// Neighbours of a changed tile change their look and group too
+		xs -= 1;
+		ys -= 1;
+		xm += 1;
+		ym += 1;
+		for (int[] d : dirty) {
+			if (xs <= d[2] && xm >= d[0] && ys <= d[3] && ym >= d[1]) {
+				d[0] = Math.min(d[0], xs);
+				d[1] = Math.min(d[1], ys);
+				d[2] = Math.max(d[2], xm);
+				d[3] = Math.max(d[3], ym);
+				return;
 			}
 		}
-		// System.out.println((System.nanoTime() - time) / 1000000);
+		dirty.add(new int[] { xs, ys, xm, ym });
+	}
+
+	public void update() {
+		if (dirty.size() > 0) {
+			for (int[] d : dirty) {
+				redraw(d[0], d[1], d[2], d[3], false);
+			}
+			ground.render(dirty);
+			sound.render(dirty);
+			dirty.clear();
+		}
+	}
+
+	// Chunks only write to themselves, so they can all be rendered at once
+	@Override
+	public void renderChunks(List<int[]> areas) {
+		final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (final int[] area : areas) {
+			tasks.add(new Callable<Object>() {
+				@Override
+				public Object call() {
+					renderChunk(area[0], area[1], area[2], area[3]);
+					return null;
+				}
+			});
+		}
+		invokeAll(tasks);
+	}
+
+	@Override
+	public void renderChunk(int xs, int ys, int xm, int ym) {
+		for (int y = ys; y < ym; y++) {
+			for (int x = xs; x < xm; x++) {
+				setTypeData(x, y, false);
+			}
+		}
+	}
+
+	// Threads -----------------------------------------------------------------
+	protected static void invokeAll(List<Callable<Object>> tasks) {
+		try {
+			if (THREADS == 1 || tasks.size() == 1) {
+				for (Callable<Object> task : tasks) {
+					task.call();
+				}
+
+			} else {
+				for (Future<Object> future : getExecutor().invokeAll(tasks)) {
+					future.get();
+				}
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+
+		} catch (RuntimeException e) {
+			throw e;
+
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(THREADS,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "Renderer");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return executor;
 	}
 
 	private void setTypeData(int x, int y, boolean transparent) {
-		int[] type = getTypeData(x, y, transparent);
+		final int type = getTypeData(x, y, transparent);
+		final int tile = type & 15;
+		final int overlay = type >> 4 & 15;
+		final int border = type >> 8;
+		final TileStore tiles = map.tiles;
 		if (transparent) {
-			map.overlayTransparentData[x][y] = (byte) type[1];
+			tiles.set(TileStore.OVERLAY_TRANSPARENT, x, y, overlay);
 		} else {
-			map.overlayData[x][y] = (byte) type[1];
+			tiles.set(TileStore.OVERLAY, x, y, overlay);
 		}
 		if (transparent) {
-			map.borderTransparentData[x][y] = (byte) type[2];
+			tiles.set(TileStore.BORDER_TRANSPARENT, x, y, border);
 		} else {
-			map.borderData[x][y] = (byte) type[2];
+			tiles.set(TileStore.BORDER, x, y, border);
 		}
-		if (type[0] != 0) {
+		if (tile != 0) {
 			if (transparent) {
-				map.drawTransparentData[x][y] = (byte) type[0];
+				tiles.set(TileStore.DRAW_TRANSPARENT, x, y, tile);
 			} else {
-				map.drawData[x][y] = (byte) type[0];
+				tiles.set(TileStore.DRAW, x, y, tile);
 			}
 		} else {
-			if (map.mapData[x][y] != 0) {
+			if (tiles.get(TileStore.MAP, x, y) != 0) {
 				if (transparent) {
-					map.drawTransparentData[x][y] = 16;
+					tiles.set(TileStore.DRAW_TRANSPARENT, x, y, 16);
 				} else {
-					map.drawData[x][y] = 16;
+					tiles.set(TileStore.DRAW, x, y, 16);
 				}
 			}
 		}
 	}
 
-	private int[] getTypeData(int x, int y, boolean transparent) {
-		int type = map.mapData[x][y];
-		int trans = map.transparentData[x][y];
-		int tile = 0;
-		int overlay = 0;
+	// Types -------------------------------------------------------------------
+	private static final int UP = 1;
+	private static final int RIGHT = 2;
+	private static final int DOWN = 4;
+	private static final int LEFT = 8;
+	private static final int UP_RIGHT = 16;
+	private static final int DOWN_RIGHT = 32;
+	private static final int DOWN_LEFT = 64;
+	private static final int UP_LEFT = 128;
+
+	// Tile and overlay for every combination of matching neighbours
+	private static final int[] TYPES = new int[256];
+	static {
+		for (int n = 0; n < 256; n++) {
+			int overlay = 0;
+			overlay += (n & (LEFT | UP | UP_LEFT)) == (LEFT | UP) ? 1 : 0;
+			overlay += (n & (RIGHT | UP | UP_RIGHT)) == (RIGHT | UP) ? 2 : 0;
+			overlay += (n & (RIGHT | DOWN | DOWN_RIGHT)) == (RIGHT | DOWN) ? 4
+					: 0;
+			overlay += (n & (LEFT | DOWN | DOWN_LEFT)) == (LEFT | DOWN) ? 8 : 0;
+			TYPES[n] = (~n & 15) | overlay << 4;
+		}
+	}
+
+	// The normal layers ignore transparency, so that they don't depend on
+	// the area the player is currently hiding in. Returns the tile in the
+	// lowest 4 bits, followed by the overlay and the border
+	private int getTypeData(int x, int y, boolean transparent) {
+		final int type = map.tiles.get(TileStore.MAP, x, y);
+		if (type <= 0) {
+			return 0;
+		}
+
+		final int trans = transparent ? map.tiles.get(TileStore.TRANSPARENT,
+				x, y) : -1;
+		final int empty = transparent ? 0 : -1;
 		int border = 0;
-		if (type > 0) {
-			if (type == 2 || (transparent && trans == 1)) {
-				border += getAt(x, y - 1, 0, 0) ? 1 : 0; // Up
-				border += getAt(x + 1, y, 0, 0) ? 2 : 0; // Right
-				border += getAt(x, y + 1, 0, 0) ? 4 : 0; // Down
-				border += getAt(x - 1, y, 0, 0) ? 8 : 0; // Left
-				if ((transparent && trans == 1) && map.transparentTile == 4) {
-					border = 0;
-					border += getAt(x, y - 1, 0, 0) ? 1 : 0; // Up
-					border += getAt(x, y - 1, 2, 0) ? 1 : 0; // Up
-				}
-			} else if (type == 4) {
-				border += getAt(x, y - 1, 0, 0) ? 1 : 0; // Up
-				border += getAt(x, y - 1, 2, 0) ? 1 : 0; // Up
-			}
-			tile += getAt(x, y - 1, type, trans) ? 0 : 1; // Up
-			tile += getAt(x + 1, y, type, trans) ? 0 : 2; // Right
-			tile += getAt(x, y + 1, type, trans) ? 0 : 4; // Down
-			tile += getAt(x - 1, y, type, trans) ? 0 : 8; // Left
-
-			// Top Left
-			overlay += getAt(x - 1, y, type, trans)
-					&& getAt(x, y - 1, type, trans)
-					&& !getAt(x - 1, y - 1, type, trans) ? 1 : 0;
-
-			// Top Right
-			overlay += getAt(x + 1, y, type, trans)
-					&& getAt(x, y - 1, type, trans)
-					&& !getAt(x + 1, y - 1, type, trans) ? 2 : 0;
-
-			// Bottom Right
-			overlay += getAt(x + 1, y, type, trans)
-					&& getAt(x, y + 1, type, trans)
-					&& !getAt(x + 1, y + 1, type, trans) ? 4 : 0;
-
-			// Bottom Left
-			overlay += getAt(x - 1, y, type, trans)
-					&& getAt(x, y + 1, type, trans)
-					&& !getAt(x - 1, y + 1, type, trans) ? 8 : 0;
+		if ((transparent && trans == 1) && map.transparentTile == 4) {
+			border += getAt(x, y - 1, 0, empty) ? 1 : 0; // Up
+			border += getAt(x, y - 1, 2, empty) ? 1 : 0; // Up
+
+		} else if (type == 2 || (transparent && trans == 1)) {
+			border = getNeighbours(x, y, 0, empty) & 15;
 
+		} else if (type == 4) {
+			border += getAt(x, y - 1, 0, empty) ? 1 : 0; // Up
+			border += getAt(x, y - 1, 2, empty) ? 1 : 0; // Up
+		}
+		return TYPES[getNeighbours(x, y, type, trans)] | border << 8;
+	}
+
+	private int getNeighbours(int x, int y, int type, int trans) {
+		if (x > 0 && y > 0 && x < map.mapWidth - 1 && y < map.mapHeight - 1) {
+			return (is(x, y - 1, type, trans) ? UP : 0)
+					| (is(x + 1, y, type, trans) ? RIGHT : 0)
+					| (is(x, y + 1, type, trans) ? DOWN : 0)
+					| (is(x - 1, y, type, trans) ? LEFT : 0)
+					| (is(x + 1, y - 1, type, trans) ? UP_RIGHT : 0)
+					| (is(x + 1, y + 1, type, trans) ? DOWN_RIGHT : 0)
+					| (is(x - 1, y + 1, type, trans) ? DOWN_LEFT : 0)
+					| (is(x - 1, y - 1, type, trans) ? UP_LEFT : 0);
+
+		} else {
+			return (getAt(x, y - 1, type, trans) ? UP : 0)
+					| (getAt(x + 1, y, type, trans) ? RIGHT : 0)
+					| (getAt(x, y + 1, type, trans) ? DOWN : 0)
+					| (getAt(x - 1, y, type, trans) ? LEFT : 0)
+					| (getAt(x + 1, y - 1, type, trans) ? UP_RIGHT : 0)
+					| (getAt(x + 1, y + 1, type, trans) ? DOWN_RIGHT : 0)
+					| (getAt(x - 1, y + 1, type, trans) ? DOWN_LEFT : 0)
+					| (getAt(x - 1, y - 1, type, trans) ? UP_LEFT : 0);
 		}
-		return new int[] { tile, overlay, border };
 	}
 
 	private boolean getAt(int x, int y, int type, int trans) {
 		if (x < 0 || y < 0 || x > map.mapWidth - 1 || y > map.mapHeight - 1) {
 			return true;
 		} else {
-			return map.mapData[x][y] == type
-					&& map.transparentData[x][y] == trans;
+			return is(x, y, type, trans);
 		}
 	}
+
+	private boolean is(int x, int y, int type, int trans) {
+		return map.tiles.get(TileStore.MAP, x, y) == type
+				&& (trans == -1 || map.tiles.get(TileStore.TRANSPARENT, x,
+						y) == trans);
+	}
 }
@@ -0,0 +1,126 @@
+/**
+ *  This file is part of Tuff.
+ *
+ *  Tuff is free software: you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Tuff is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along with
+ *  Tuff. If not, see <http://www.gnu.org/licenses/>.
+ *  
+ */
+
+package org.tuff.game;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class ObjectGrid {
+	// Cells
+	public static final int CELL_SHIFT = 4;
+	public static final int CELL_SIZE = 1 << CELL_SHIFT;
+
+	private final TuffMap map;
+
+	// Indices of the map objects sorted by the cell they're in, the objects
+	// of each cell are stored one cell after another
+	private int cellsX;
+	private int cellsY;
+	private int[] cellStarts = new int[1];
+	private int[] cellObjects = new int[64];
+	private boolean stale = true;
+
+	public ObjectGrid(TuffMap map) {
+		this.map = map;
+	}
+
+	// Find --------------------------------------------------------------------
+	// Fills found with the indices of the objects inside of the area in list
+	// order, followed by -1. Returns found, or a larger array if it was full
+	public synchronized int[] find(final int xs, final int ys, final int xm,
+			final int ym, int[] found) {
+		if (stale) {
+			build();
+		}
+
+		int count = 0;
+		final int cxm = Math.min(cell(xm - 1, cellsX), cellsX - 1);
+		final int cym = Math.min(cell(ym - 1, cellsY), cellsY - 1);
+		for (int cy = cell(ys, cellsY); cy <= cym; cy++) {
+			for (int cx = cell(xs, cellsX); cx <= cxm; cx++) {
+				final int c = cy * cellsX + cx;
+				for (int i = cellStarts[c]; i < cellStarts[c + 1]; i++) {
+					final int[] object = map.mapObjects.get(cellObjects[i]);
+					if (object[1] >= xs && object[2] >= ys && object[1] < xm
+							&& object[2] < ym) {
+						if (count + 1 >= found.length) {
+							found = grow(found);
+						}
+						found[count++] = cellObjects[i];
+					}
+				}
+			}
+		}
+
+		// Cells are visited row by row, which mixes up the list order
+		Arrays.sort(found, 0, count);
+		found[count] = -1;
+		return found;
+	}
+
+	private int cell(final int pos, final int cells) {
+		final int c = pos >> CELL_SHIFT;
+		return c < 0 ? 0 : (c >= cells ? cells - 1 : c);
+	}
+
+	// Changes -----------------------------------------------------------------
+	public synchronized void invalidate() {
+		stale = true;
+	}
+
+	// Cells -------------------------------------------------------------------
+	private void build() {
+		final List<int[]> objects = map.mapObjects;
+		cellsX = Math.max(1, (map.mapWidth + CELL_SIZE - 1) >> CELL_SHIFT);
+		cellsY = Math.max(1, (map.mapHeight + CELL_SIZE - 1) >> CELL_SHIFT);
+		if (cellStarts.length < cellsX * cellsY + 1) {
+			cellStarts = new int[cellsX * cellsY + 1];
+		}
+		while (cellObjects.length < objects.size()) {
+			cellObjects = grow(cellObjects);
+		}
+
+		// Count the objects of each cell, then place them in list order
+		Arrays.fill(cellStarts, 0);
+		for (int i = 0; i < objects.size(); i++) {
+			cellStarts[objectCell(objects.get(i)) + 1]++;
+		}
+		for (int c = 0; c < cellsX * cellsY; c++) {
+			cellStarts[c + 1] += cellStarts[c];
+		}
+		for (int i = 0; i < objects.size(); i++) {
+			cellObjects[cellStarts[objectCell(objects.get(i))]++] = i;
+		}
+		for (int c = cellsX * cellsY; c > 0; c--) {
+			cellStarts[c] = cellStarts[c - 1];
+		}
+		cellStarts[0] = 0;
+		stale = false;
+	}
+
+	private int objectCell(final int[] object) {
+		return cell(object[2], cellsY) * cellsX + cell(object[1], cellsX);
+	}
+
+	private int[] grow(final int[] data) {
+		final int[] grown = new int[data.length * 2];
+		System.arraycopy(data, 0, grown, 0, data.length);
+		return grown;
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ *  This file is part of Tuff.
+ *
+ *  Tuff is free software: you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Tuff is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along with
+ *  Tuff. If not, see <http://www.gnu.org/licenses/>.
+ *  
+ */
+
+package org.tuff.game;
+
+public class ObstacleGrid {
+	private final MapObjectStore objects;
+
+	// Obstacles touching each tile of the area around them, switches come
+	// before blocks and both keep their list order
+	private int areaX = 0;
+	private int areaY = 0;
+	private int areaWidth = 0;
+	private int areaHeight = 0;
+	private int[] cellStarts = new int[1];
+	private int[][] cellObstacles = new int[64][];
+	private boolean stale = true;
+
+	// Current tile
+	private int first = 0;
+
+	public ObstacleGrid(final MapObjectStore objects) {
+		this.objects = objects;
+	}
+
+	// Find --------------------------------------------------------------------
+	public int find(final int tx, final int ty) {
+		if (stale) {
+			build();
+		}
+		final int x = tx - areaX;
+		final int y = ty - areaY;
+		if (x < 0 || y < 0 || x >= areaWidth || y >= areaHeight) {
+			return 0;
+		}
+		final int c = y * areaWidth + x;
+		first = cellStarts[c];
+		return cellStarts[c + 1] - first;
+	}
+
+	public int[] get(final int obstacle) {
+		return cellObstacles[first + obstacle];
+	}
+
+	// Changes -----------------------------------------------------------------
+	public void invalidate() {
+		stale = true;
+	}
+
+	// Cells -------------------------------------------------------------------
+	private void build() {
+		stale = false;
+		areaWidth = 0;
+		areaHeight = 0;
+		final int switches = objects.size(MapObjectStore.SWITCH);
+		final int count = switches + objects.size(MapObjectStore.BLOCK);
+		if (count == 0) {
+			return;
+		}
+
+		int xs = Integer.MAX_VALUE;
+		int ys = Integer.MAX_VALUE;
+		int xm = Integer.MIN_VALUE;
+		int ym = Integer.MIN_VALUE;
+		for (int e = 0; e < count; e++) {
+			final int[] o = obstacle(e, switches);
+			xs = Math.min(xs, o[1]);
+			ys = Math.min(ys, o[2]);
+			xm = Math.max(xm, o[1] + spanX(o));
+			ym = Math.max(ym, o[2] + spanY(o));
+		}
+		areaX = xs;
+		areaY = ys;
+		areaWidth = xm - xs + 1;
+		areaHeight = ym - ys + 1;
+
+		// Count the obstacles of each tile, then place them in order
+		final int cells = areaWidth * areaHeight;
+		if (cellStarts.length < cells + 1) {
+			cellStarts = new int[cells + 1];
+		}
+		for (int c = 0; c <= cells; c++) {
+			cellStarts[c] = 0;
+		}
+		for (int pass = 0; pass < 2; pass++) {
+			for (int e = 0; e < count; e++) {
+				final int[] o = obstacle(e, switches);
+				for (int y = o[2]; y <= o[2] + spanY(o); y++) {
+					for (int x = o[1]; x <= o[1] + spanX(o); x++) {
+						final int c = (y - areaY) * areaWidth + x - areaX;
+						if (pass == 0) {
+							cellStarts[c + 1]++;
+
+						} else {
+							cellObstacles[cellStarts[c]++] = o;
+						}
+					}
+				}
+			}
+
+			if (pass == 0) {
+				for (int c = 0; c < cells; c++) {
+					cellStarts[c + 1] += cellStarts[c];
+				}
+				if (cellObstacles.length < cellStarts[cells]) {
+					cellObstacles = new int[cellStarts[cells] * 2][];
+				}
+			}
+		}
+		for (int c = cells; c > 0; c--) {
+			cellStarts[c] = cellStarts[c - 1];
+		}
+		cellStarts[0] = 0;
+	}
+
+	private int[] obstacle(final int e, final int switches) {
+		return e < switches ? objects.get(MapObjectStore.SWITCH, e) : objects
+				.get(MapObjectStore.BLOCK, e - switches);
+	}
+
+	// Extra tiles touched by the collision box of an obstacle, the boxes
+	// include their far edge
+	private int spanX(final int[] o) {
+		return o[3] >= 6 ? 0 : 2;
+	}
+
+	private int spanY(final int[] o) {
+		return o[3] >= 6 ? 1 : 2;
+	}
+}
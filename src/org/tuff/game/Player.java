@@ -18,11 +18,9 @@
 
 package org.tuff.game;
 
-import java.awt.AlphaComposite;
 import java.awt.Composite;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.util.ArrayList;
 import java.util.LinkedList;
 
 public class Player extends PlayerObject {
@@ -80,14 +78,22 @@ public class Player extends PlayerObject {
 			"SUPERJUMP", "DIVE", "BREAK", "SPEED" };
 
 	// Entities
-	public ArrayList<int[]> entitiesCollected = new ArrayList<int[]>();
+	public TileSet entitiesCollected = new TileSet();
 
 	// Blocks
-	public ArrayList<int[]> blocksOpened = new ArrayList<int[]>();
+	public TileSet blocksOpened = new TileSet();
 
 	// Switches
 	public boolean[] switchesToggled = new boolean[4];
 
+	// Damage, where the player was drawn last time
+	private int damageXs = 0;
+	private int damageYs = 0;
+	private int damageXm = 0;
+	private int damageYm = 0;
+	private int damageImage = -1;
+	private boolean damageDashes = false;
+
 	public Player(Tuff g, int x, int y) {
 		super(g);
 		loadTiles("/images/player.png", 23, 2);
@@ -827,6 +833,40 @@ public class Player extends PlayerObject {
 		}
 	}
 
+	// Damages where the player was drawn last time and where it is now, the
+	// dashes cover everything between the trail and the player
+	public void damage(final Compositor compositor) {
+		final int x = posX - 8 - map.screenOffsetX;
+		final int y = posY - 16 - map.screenOffsetY;
+		final int image = playerImage | side << 8 | (breakImage ? 512 : 0);
+		int xs = x;
+		int ys = y;
+		int xm = x + 16;
+		int ym = y + 16;
+		final boolean dashing = superJumping || speedActive > 2;
+		if (dashing) {
+			for (int i = 0; i < dashes.size(); i++) {
+				final int pos[] = dashes.get(i);
+				xs = Math.min(xs, pos[0] - 8 - map.screenOffsetX);
+				ys = Math.min(ys, pos[1] - 16 - map.screenOffsetY);
+				xm = Math.max(xm, pos[0] + 8 - map.screenOffsetX);
+				ym = Math.max(ym, pos[1] - map.screenOffsetY);
+			}
+		}
+		if (dashing || damageDashes || xs != damageXs || ys != damageYs
+				|| xm != damageXm || ym != damageYm || image != damageImage) {
+			compositor.damage(damageXs, damageYs, damageXm - damageXs,
+					damageYm - damageYs);
+			compositor.damage(xs, ys, xm - xs, ym - ys);
+		}
+		damageXs = xs;
+		damageYs = ys;
+		damageXm = xm;
+		damageYm = ym;
+		damageImage = image;
+		damageDashes = dashing;
+	}
+
 	public void draw(Graphics2D g) {
 		BufferedImage img;
 		if (breakImage) {
@@ -844,12 +884,9 @@ public class Player extends PlayerObject {
 		// Dash
 		if (superJumping || speedActive > 2) {
 			Composite tmp = g.getComposite();
-			AlphaComposite alphaComposite = null;
 			for (int i = 0; i < dashes.size(); i++) {
 				int pos[] = dashes.get(i);
-				alphaComposite = AlphaComposite.getInstance(
-						AlphaComposite.SRC_OVER, 0.25f + i * 0.25f);
-				g.setComposite(alphaComposite);
+				g.setComposite(Composites.get(0.25f + i * 0.25f));
 				g.drawImage(img, pos[0] - 8 - map.screenOffsetX, pos[1] - 16
 						- map.screenOffsetY, null);
 				map.objImgCount++;
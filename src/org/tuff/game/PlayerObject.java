@@ -75,29 +75,52 @@ public abstract class PlayerObject extends GameObject<Tuff> {
 
 	public void moveX(int side) {
 		int add = side == 1 ? 1 : -1;
+		int offset = side == 1 ? rightCol : leftCol;
 		int move = (int) (speed + Math.abs(moveX));
 		for (int i = 0; i < move; i++) {
-			int col = 0;
+			int free = _sweepX(offset, add, move - i);
+			posX += free * add;
+			i += free;
+			if (i == move) {
+				break;
+			}
+
+			int col = _checkColX(offset);
 			if (side == 1) {
-				col = _checkColX(rightCol);
+				if (onRightCollision(col)) {
+					break;
+				}
 			} else {
-				col = _checkColX(leftCol);
-			}
-			if (col != 0) {
-				if (side == 1) {
-					if (onRightCollision(col)) {
-						break;
-					}
-				} else {
-					if (onLeftCollision(col)) {
-						break;
-					}
+				if (onLeftCollision(col)) {
+					break;
 				}
+			}
+		}
+	}
 
-			} else {
-				posX += add;
+	// Steps until one of the points checked by _checkColX hits something,
+	// tiles without switches or blocks are skipped as a whole
+	private int _sweepX(int offset, int add, int max) {
+		int size = map.tileSize;
+		int free = 0;
+		while (free < max) {
+			int x = posX + offset + free * add;
+			int run = max - free;
+			for (int i = topColSize - 1; i > 0 - size; i -= size) {
+				if (i < 1) {
+					i = 1;
+				}
+				if (map.colAt(x, posY - i) > 0) {
+					return free;
+				}
+				run = Math.min(run, map.colRunX(x, posY - i, add));
+				if (i == 1) {
+					break;
+				}
 			}
+			free += run;
 		}
+		return max;
 	}
 
 	private int _checkColX(int offset) {
@@ -187,29 +210,10 @@ public abstract class PlayerObject extends GameObject<Tuff> {
 		}
 
 		// Move
+		int offset = add == 1 ? 0 : 0 - topColSize;
 		for (int i = 0; i < grav; i++) {
-			int col = 0;
-			if (add == 1) {
-				col = _checkColY(0);
-			} else {
-				col = _checkColY(0 - topColSize);
-			}
-
-			if (col != 0) {
-				this.grav = 0.0f;
-				if (add == 1) {
-					if (!onGround) {
-						if (onBottomCollision(col)) {
-							onGround = true;
-							break;
-						}
-					}
-				} else {
-					if (onTopCollision(col)) {
-						break;
-					}
-				}
-			} else {
+			int free = _sweepY(offset, add, grav - i);
+			for (int f = 0; f < free; f++) {
 				onGround = false;
 				if (add == 1) {
 					onFalling();
@@ -218,7 +222,51 @@ public abstract class PlayerObject extends GameObject<Tuff> {
 				}
 				posY += add;
 			}
+			i += free;
+			if (i == grav) {
+				break;
+			}
+
+			int col = _checkColY(offset);
+			this.grav = 0.0f;
+			if (add == 1) {
+				if (!onGround) {
+					if (onBottomCollision(col)) {
+						onGround = true;
+						break;
+					}
+				}
+			} else {
+				if (onTopCollision(col)) {
+					break;
+				}
+			}
+		}
+	}
+
+	// Steps until one of the points checked by _checkColY hits something
+	private int _sweepY(int offset, int add, int max) {
+		int size = map.tileSize;
+		int last = rightCol - 1;
+		int free = 0;
+		while (free < max) {
+			int y = posY + offset + free * add;
+			int run = max - free;
+			for (int i = leftCol + 1; i < last + size; i += size) {
+				if (i > last) {
+					i = last;
+				}
+				if (map.colAt(posX + i, y) > 0) {
+					return free;
+				}
+				run = Math.min(run, map.colRunY(posX + i, y, add));
+				if (i == last) {
+					break;
+				}
+			}
+			free += run;
 		}
+		return max;
 	}
 
 	private int _checkColY(int offset) {
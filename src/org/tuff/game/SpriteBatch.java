@@ -0,0 +1,347 @@
+/**
+ *  This file is part of Tuff.
+ *
+ *  Tuff is free software: you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Tuff is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along with
+ *  Tuff. If not, see <http://www.gnu.org/licenses/>.
+ *  
+ */
+
+package org.tuff.game;
+
+import java.awt.AlphaComposite;
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+public class SpriteBatch {
+	// Blending table, the same rounding as the SrcOver loops of Java2D
+	private static final byte[][] MUL8 = new byte[256][256];
+	static {
+		for (int i = 1; i < 256; i++) {
+			final int inc = (i << 16) + (i << 8) + i;
+			int val = inc + (1 << 23);
+			for (int j = 1; j < 256; j++) {
+				MUL8[i][j] = (byte) (val >>> 24);
+				val += inc;
+			}
+		}
+	}
+
+	// All sprites share one atlas of ARGB pixels
+	private BufferedImage[] images = new BufferedImage[16];
+	private int[] spriteOffset = new int[16];
+	private int[] spriteWidth = new int[16];
+	private int[] spriteHeight = new int[16];
+	private int[] atlas = new int[4096];
+	private int atlasSize = 0;
+	private int spriteCount = 0;
+
+	// Queued quads, drawn in order when flushed
+	private int[] quads = new int[4 * 64];
+	private int quadCount = 0;
+	private int boundsXs, boundsYs, boundsXm, boundsYm;
+	private int[] buffer = new int[0];
+
+	// Target, quads only get written into it directly while nothing but
+	// plain unscaled drawing is set up on the graphics
+	private BufferedImage target;
+	private Graphics2D g;
+	private boolean usable = false;
+	private boolean direct = false;
+	private int alpha = 255;
+	private Shape clip;
+	private int clipXs, clipYs, clipXm, clipYm;
+
+	// Without acceleration the pixels of the target are owned here and
+	// written straight away, which also lets opaque images be copied row
+	// by row. Accelerated targets get their quads queued instead, so their
+	// images stay managed by Java2D
+	private int[] pixels;
+	private int pixelsOffset;
+	private int pixelsStride;
+
+	// Sprites -----------------------------------------------------------------
+	public int add(final BufferedImage[] sprites) {
+		final int first = spriteCount;
+		for (int i = 0; i < sprites.length; i++) {
+			add(sprites[i]);
+		}
+		return first;
+	}
+
+	public int add(final BufferedImage sprite) {
+		final int w = sprite.getWidth();
+		final int h = sprite.getHeight();
+		if (spriteCount == images.length) {
+			final BufferedImage[] grown = new BufferedImage[images.length * 2];
+			System.arraycopy(images, 0, grown, 0, images.length);
+			images = grown;
+			spriteOffset = grow(spriteOffset, images.length);
+			spriteWidth = grow(spriteWidth, images.length);
+			spriteHeight = grow(spriteHeight, images.length);
+		}
+		if (atlasSize + w * h > atlas.length) {
+			atlas = grow(atlas, Math.max(atlas.length * 2, atlasSize + w * h));
+		}
+		sprite.getRGB(0, 0, w, h, atlas, atlasSize, w);
+		images[spriteCount] = sprite;
+		spriteOffset[spriteCount] = atlasSize;
+		spriteWidth[spriteCount] = w;
+		spriteHeight[spriteCount] = h;
+		atlasSize += w * h;
+		return spriteCount++;
+	}
+
+	private int[] grow(final int[] data, final int size) {
+		final int[] grown = new int[size];
+		System.arraycopy(data, 0, grown, 0, data.length);
+		return grown;
+	}
+
+	// Target ------------------------------------------------------------------
+	public void setTarget(final BufferedImage target) {
+		end();
+		this.target = target != null
+				&& target.getType() == BufferedImage.TYPE_INT_RGB ? target
+				: null;
+
+		pixels = null;
+		if (this.target != null && Surfaces.getConfiguration() == null) {
+			final WritableRaster raster = target.getRaster();
+			final DataBufferInt data = (DataBufferInt) raster.getDataBuffer();
+			pixels = data.getData();
+			pixelsOffset = data.getOffset();
+			pixelsStride = ((SinglePixelPackedSampleModel) raster
+					.getSampleModel()).getScanlineStride();
+		}
+	}
+
+	public void begin(final Graphics2D g) {
+		end();
+		this.g = g;
+		usable = target != null
+				&& g.getTransform().getType() == AffineTransform.TYPE_IDENTITY;
+		direct = usable && setAlpha(g.getComposite());
+
+		if (usable) {
+			clip = g.getClip();
+			final Rectangle bounds = clip == null ? null : clip.getBounds();
+			clipXs = bounds == null ? 0 : Math.max(0, bounds.x);
+			clipYs = bounds == null ? 0 : Math.max(0, bounds.y);
+			clipXm = bounds == null ? target.getWidth() : Math.min(
+					target.getWidth(), bounds.x + bounds.width);
+			clipYm = bounds == null ? target.getHeight() : Math.min(
+					target.getHeight(), bounds.y + bounds.height);
+
+			// Rectangles get clipped here, other shapes by Java2D
+			if (clip == null || clip instanceof Rectangle) {
+				clip = null;
+			}
+		}
+	}
+
+	public void end() {
+		flush();
+		g = null;
+		clip = null;
+		usable = false;
+		direct = false;
+	}
+
+	public boolean uses(final Graphics2D g) {
+		return g == this.g;
+	}
+
+	// Queued quads keep the alpha they were drawn with
+	public void setComposite(final Composite composite) {
+		g.setComposite(composite);
+		direct = usable && setAlpha(composite);
+	}
+
+	private boolean setAlpha(final Composite composite) {
+		if (composite instanceof AlphaComposite) {
+			final AlphaComposite ac = (AlphaComposite) composite;
+			if (ac.getRule() == AlphaComposite.SRC_OVER) {
+				alpha = (int) (ac.getAlpha() * 255 + 0.5f);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Drawing -----------------------------------------------------------------
+	public void draw(final int sprite, final int x, final int y) {
+		if (!direct) {
+			g.drawImage(images[sprite], x, y, null);
+			return;
+		}
+
+		final int w = spriteWidth[sprite];
+		final int h = spriteHeight[sprite];
+		final int xs = Math.max(x, clipXs);
+		final int ys = Math.max(y, clipYs);
+		final int xm = Math.min(x + w, clipXm);
+		final int ym = Math.min(y + h, clipYm);
+		if (xs >= xm || ys >= ym || alpha == 0) {
+			return;
+
+		} else if (clip != null && !clip.contains(x, y, w, h)) {
+			if (clip.intersects(x, y, w, h)) {
+				flush();
+				g.drawImage(images[sprite], x, y, null);
+			}
+			return;
+		}
+
+		if (pixels != null) {
+			blit(atlas, spriteOffset[sprite] + (ys - y) * w + xs - x, w,
+					false, pixels, pixelsOffset + ys * pixelsStride + xs,
+					pixelsStride, xm - xs, ym - ys, alpha);
+			return;
+		}
+
+		if (quadCount == 0) {
+			boundsXs = xs;
+			boundsYs = ys;
+			boundsXm = xm;
+			boundsYm = ym;
+
+		} else {
+			boundsXs = Math.min(boundsXs, xs);
+			boundsYs = Math.min(boundsYs, ys);
+			boundsXm = Math.max(boundsXm, xm);
+			boundsYm = Math.max(boundsYm, ym);
+		}
+		if (quadCount * 4 == quads.length) {
+			quads = grow(quads, quads.length * 2);
+		}
+		quads[quadCount * 4] = sprite;
+		quads[quadCount * 4 + 1] = x;
+		quads[quadCount * 4 + 2] = y;
+		quads[quadCount * 4 + 3] = alpha;
+		quadCount++;
+	}
+
+	// Scaled sprites are left to Java2D, its sampling can't be matched here
+	public void draw(final int sprite, final int x, final int y, final int w,
+			final int h) {
+		if (w == spriteWidth[sprite] && h == spriteHeight[sprite]) {
+			draw(sprite, x, y);
+
+		} else {
+			flush();
+			g.drawImage(images[sprite], x, y, w, h, null);
+		}
+	}
+
+	// Copies an area of an opaque image, which only happens directly when
+	// the pixels of the target are owned
+	public void copy(final BufferedImage image, final int sx, final int sy,
+			final int w, final int h, final int x, final int y) {
+		final int xs = Math.max(x, clipXs);
+		final int ys = Math.max(y, clipYs);
+		final int xm = Math.min(x + w, clipXm);
+		final int ym = Math.min(y + h, clipYm);
+		if (!direct || pixels == null
+				|| image.getType() != BufferedImage.TYPE_INT_RGB
+				|| (clip != null && !clip.contains(x, y, w, h))) {
+			flush();
+			g.drawImage(image, x, y, x + w, y + h, sx, sy, sx + w, sy + h,
+					null);
+			return;
+
+		} else if (xs >= xm || ys >= ym || alpha == 0) {
+			return;
+		}
+
+		final WritableRaster raster = image.getRaster();
+		final DataBufferInt data = (DataBufferInt) raster.getDataBuffer();
+		final int stride = ((SinglePixelPackedSampleModel) raster
+				.getSampleModel()).getScanlineStride();
+		blit(data.getData(), data.getOffset() + (sy + ys - y) * stride + sx
+				+ xs - x, stride, true, pixels, pixelsOffset + ys
+				* pixelsStride + xs, pixelsStride, xm - xs, ym - ys, alpha);
+	}
+
+	// All queued quads get blended into one copy of the area they cover,
+	// which is then written back in one go
+	public void flush() {
+		if (quadCount == 0) {
+			return;
+		}
+
+		final int bw = boundsXm - boundsXs;
+		final int bh = boundsYm - boundsYs;
+		if (buffer.length < bw * bh) {
+			buffer = new int[bw * bh];
+		}
+		final WritableRaster raster = target.getRaster();
+		raster.getDataElements(boundsXs, boundsYs, bw, bh, buffer);
+
+		for (int q = 0; q < quadCount * 4; q += 4) {
+			final int sprite = quads[q];
+			final int x = quads[q + 1];
+			final int y = quads[q + 2];
+			final int w = spriteWidth[sprite];
+			final int xs = Math.max(x, clipXs);
+			final int ys = Math.max(y, clipYs);
+			final int xm = Math.min(x + w, clipXm);
+			final int ym = Math.min(y + spriteHeight[sprite], clipYm);
+			blit(atlas, spriteOffset[sprite] + (ys - y) * w + xs - x, w,
+					false, buffer, (ys - boundsYs) * bw + xs - boundsXs, bw,
+					xm - xs, ym - ys, quads[q + 3]);
+		}
+		raster.setDataElements(boundsXs, boundsYs, bw, bh, buffer);
+		quadCount = 0;
+	}
+
+	// Blending ----------------------------------------------------------------
+	private void blit(final int[] src, int s, final int srcStride,
+			final boolean opaque, final int[] dst, int d,
+			final int dstStride, final int w, final int h, final int alpha) {
+		final byte[] extra = MUL8[alpha];
+		for (int row = 0; row < h; row++, s += srcStride, d += dstStride) {
+			if (opaque && alpha == 255) {
+				System.arraycopy(src, s, dst, d, w);
+				continue;
+			}
+			for (int i = 0; i < w; i++) {
+				final int p = src[s + i];
+				final int a = opaque ? alpha : extra[p >>> 24] & 0xff;
+				if (a == 255) {
+					dst[d + i] = p & 0xffffff;
+
+				} else if (a != 0) {
+					dst[d + i] = blend(p, dst[d + i], a);
+				}
+			}
+		}
+	}
+
+	private int blend(final int src, final int dst, final int a) {
+		final byte[] sa = MUL8[a];
+		final byte[] da = MUL8[255 - a];
+		final int r = (sa[(src >> 16) & 0xff] & 0xff)
+				+ (da[(dst >> 16) & 0xff] & 0xff);
+		final int gr = (sa[(src >> 8) & 0xff] & 0xff)
+				+ (da[(dst >> 8) & 0xff] & 0xff);
+		final int b = (sa[src & 0xff] & 0xff) + (da[dst & 0xff] & 0xff);
+		return (r << 16) | (gr << 8) | b;
+	}
+}
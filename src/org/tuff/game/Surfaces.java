@@ -0,0 +1,83 @@
+/**
+ *  This file is part of Tuff.
+ *
+ *  Tuff is free software: you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Tuff is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along with
+ *  Tuff. If not, see <http://www.gnu.org/licenses/>.
+ *  
+ */
+
+package org.tuff.game;
+
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+
+public final class Surfaces {
+	private static GraphicsConfiguration config;
+	private static boolean checked = false;
+
+	private Surfaces() {
+	}
+
+	// Acceleration needs a screen and a pipeline which supports it, without
+	// those the game keeps using plain images. Setting tuff.software turns it
+	// off by hand
+	public static synchronized GraphicsConfiguration getConfiguration() {
+		if (!checked) {
+			checked = true;
+			if (!GraphicsEnvironment.isHeadless()
+					&& !Boolean.getBoolean("tuff.software")) {
+				final GraphicsConfiguration gc = GraphicsEnvironment
+						.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+						.getDefaultConfiguration();
+				if (gc.getImageCapabilities().isAccelerated()) {
+					config = gc;
+				}
+			}
+		}
+		return config;
+	}
+
+	// Images ------------------------------------------------------------------
+	public static VolatileImage createVolatile(final int width,
+			final int height) {
+		final GraphicsConfiguration gc = getConfiguration();
+		if (gc == null) {
+			return null;
+		}
+		final VolatileImage img = gc.createCompatibleVolatileImage(width,
+				height, Transparency.OPAQUE);
+		if (img == null || !img.getCapabilities().isAccelerated()) {
+			if (img != null) {
+				img.flush();
+			}
+			return null;
+		}
+		return img;
+	}
+
+	// Compatible images get cached on the graphics card while they don't
+	// change
+	public static BufferedImage createImage(final int width, final int height,
+			final boolean alpha) {
+		final GraphicsConfiguration gc = getConfiguration();
+		if (gc == null) {
+			return null;
+		}
+		return gc.createCompatibleImage(width, height,
+				alpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE);
+	}
+
+}
@@ -0,0 +1,145 @@
+/**
+ *  This file is part of Tuff.
+ *
+ *  Tuff is free software: you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Tuff is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along with
+ *  Tuff. If not, see <http://www.gnu.org/licenses/>.
+ *  
+ */
+
+package org.tuff.game;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+public class TileCache {
+	private static final int VERSION = 1;
+
+	// Generated tile atlases, one file per set of source images
+	private final File file;
+
+	public TileCache(final File file) {
+		this.file = file;
+	}
+
+	// Source images are hashed so that tiles of older graphics never get used
+	public static String hash(final String[] resources) throws IOException {
+		final CRC32 crc = new CRC32();
+		final byte[] bytes = new byte[65536];
+		for (String resource : resources) {
+			final InputStream stream = TileCache.class
+					.getResourceAsStream(resource);
+			if (stream == null) {
+				return null;
+			}
+			try {
+				int read;
+				while ((read = stream.read(bytes)) != -1) {
+					crc.update(bytes, 0, read);
+				}
+
+			} finally {
+				stream.close();
+			}
+		}
+		return Long.toHexString(crc.getValue());
+	}
+
+	// Read --------------------------------------------------------------------
+	public boolean read(final int width, final int height, final int cells,
+			final int[][] pixels, final boolean[][] flags) {
+		if (!file.exists()) {
+			return false;
+		}
+		try {
+			final ByteBuffer in = LevelFile.readFile(file);
+			if (in.getInt() != VERSION || in.getInt() != width
+					|| in.getInt() != height || in.getInt() != pixels.length) {
+				return false;
+			}
+
+			// Nothing gets handed out before the whole file has been read
+			final int[][] atlases = new int[pixels.length][];
+			final boolean[][] generated = new boolean[pixels.length][];
+			for (int type = 0; type < pixels.length; type++) {
+				final int count = in.getInt();
+				if (count != 0 && count != cells) {
+					return false;
+
+				} else if (count > 0) {
+					generated[type] = new boolean[count];
+					for (int i = 0; i < count; i++) {
+						generated[type][i] = in.get() == 1;
+					}
+					atlases[type] = new int[width * height];
+					in.asIntBuffer().get(atlases[type]);
+					in.position(in.position() + width * height * 4);
+				}
+			}
+			for (int type = 0; type < pixels.length; type++) {
+				pixels[type] = atlases[type];
+				flags[type] = generated[type];
+			}
+			return true;
+
+		} catch (IOException e) {
+			return false;
+
+		} catch (BufferUnderflowException e) {
+			return false;
+
+		} catch (IllegalArgumentException e) {
+			return false;
+
+		} catch (SecurityException e) {
+			return false;
+		}
+	}
+
+	// Write -------------------------------------------------------------------
+	public void write(final int width, final int height, final int[][] pixels,
+			final boolean[][] flags) throws IOException {
+		file.getParentFile().mkdirs();
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(VERSION);
+			out.writeInt(width);
+			out.writeInt(height);
+			out.writeInt(pixels.length);
+			for (int type = 0; type < pixels.length; type++) {
+				if (pixels[type] == null) {
+					out.writeInt(0);
+					continue;
+				}
+				out.writeInt(flags[type].length);
+				for (int i = 0; i < flags[type].length; i++) {
+					out.writeByte(flags[type][i] ? 1 : 0);
+				}
+				final ByteBuffer bytes = ByteBuffer
+						.allocate(width * height * 4);
+				bytes.asIntBuffer().put(pixels[type]);
+				out.write(bytes.array());
+			}
+
+		} finally {
+			out.close();
+		}
+	}
+}
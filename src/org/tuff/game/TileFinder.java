@@ -18,111 +18,209 @@
 
 package org.tuff.game;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class TileFinder {
 	private final int mapHeight;
 	private final int mapWidth;
 	private final TuffMap map;
-	public ArrayList<int[]> result;
+
+	// Connected areas of collision tiles, labeled once and then looked up.
+	// The tiles of each region are stored one region after another
+	private final int[] regions;
+	private int[] regionStarts = new int[64];
+	private int[] regionTypes = new int[64];
+	private int[] regionBounds = new int[256];
+	private int[] regionTiles = new int[256];
+	private int regionCount = 0;
+	private boolean stale = true;
+
+	// Current region, its bounds stay around after the regions have been
+	// invalidated so that its transparency can still be removed
+	public int region = -1;
 	public int minX = 0;
 	public int minY = 0;
-	public int maxX = 0;
-	public int maxY = 0;
+	public int maxX = -1;
+	public int maxY = -1;
 
 	public TileFinder(TuffMap map) {
 		mapWidth = map.mapWidth;
 		mapHeight = map.mapHeight;
 		this.map = map;
+		regions = new int[mapWidth * mapHeight];
 	}
 
-	protected boolean compare(final int x, final int y) {
-		if (map.colData[x][y] == 1 && map.transparentData[x][y] != 1) {
-			int type = map.surroundType(x, y);
-			if (type == 4) {
-				map.transparentTile = 4;
-			}
-			return true;
+	// Find --------------------------------------------------------------------
+	public int find(final int x, final int y) {
+		if (stale) {
+			build();
+		}
+		region = x >= 0 && y >= 0 && x < mapWidth && y < mapHeight ? regions[y
+				* mapWidth + x] : -1;
+
+		if (region == -1) {
+			minX = mapWidth;
+			minY = mapHeight;
+			maxX = 0;
+			maxY = 0;
+
 		} else {
-			return false;
+			minX = regionBounds[region * 4];
+			minY = regionBounds[region * 4 + 1];
+			maxX = regionBounds[region * 4 + 2];
+			maxY = regionBounds[region * 4 + 3];
 		}
+		return size();
 	}
 
-	private void set(final int x, final int y) {
-		result.add(new int[] { x, y });
-		map.transparentData[x][y] = 1;
-		if (x > maxX) {
-			maxX = x;
-		}
-		if (x < minX) {
-			minX = x;
+	public int size() {
+		return region == -1 ? 0 : regionStarts[region + 1]
+				- regionStarts[region];
+	}
+
+	public int getX(final int tile) {
+		return regionTiles[regionStarts[region] + tile] % mapWidth;
+	}
+
+	public int getY(final int tile) {
+		return regionTiles[regionStarts[region] + tile] / mapWidth;
+	}
+
+	// The tile used to draw the region, which depends on what's around it
+	public int getType() {
+		if (region == -1) {
+			return 2;
+
+		} else if (regionTypes[region] == 0) {
+			regionTypes[region] = 2;
+			for (int t = 0; t < size(); t++) {
+				if (map.surroundType(getX(t), getY(t)) == 4) {
+					regionTypes[region] = 4;
+					break;
+				}
+			}
 		}
-		if (y > maxY) {
-			maxY = y;
+		return regionTypes[region];
+	}
+
+	// Changes -----------------------------------------------------------------
+	public void invalidate() {
+		stale = true;
+		region = -1;
+	}
+
+	// Regions next to a changed tile need to check their surroundings again
+	public void changed(final int x, final int y) {
+		if (!stale) {
+			clearType(x - 1, y);
+			clearType(x + 1, y);
+			clearType(x, y - 1);
+			clearType(x, y + 1);
 		}
-		if (y < minY) {
-			minY = y;
+	}
+
+	private void clearType(final int x, final int y) {
+		if (x >= 0 && y >= 0 && x < mapWidth && y < mapHeight) {
+			final int r = regions[y * mapWidth + x];
+			if (r != -1) {
+				regionTypes[r] = 0;
+			}
 		}
 	}
 
-	public int find(final int xi, final int yi) {
-		map.transparentTile = 2;
-		minX = mapWidth;
-		minY = mapHeight;
-		maxX = 0;
-		maxY = 0;
-		result = new ArrayList<int[]>();
-
-		int groupSize = 0;
-		final List<int[]> list = new ArrayList<int[]>();
-		list.add(new int[] { xi, yi });
-		while (list.size() > 0) {
-			final int[] i = list.remove(list.size() - 1);
-			final int xp = i[0];
-			final int y = i[1];
-			if (compare(xp, y)) {
-				// Left
-				for (int x = xp; x >= 0; x--) {
-					if (compare(x, y)) {
-						set(x, y);
-						groupSize++;
-
-						// Up
-						if (y - 1 >= 0 && compare(x, y - 1)) {
-							list.add(new int[] { x, y - 1 });
-						}
-
-						// Down
-						if (y + 1 <= mapHeight - 1 && compare(x, y + 1)) {
-							list.add(new int[] { x, y + 1 });
-						}
-					} else {
-						break;
-					}
+	// Regions -----------------------------------------------------------------
+	private void build() {
+		regionCount = 0;
+		int tileCount = 0;
+		for (int i = 0; i < regions.length; i++) {
+			regions[i] = -1;
+		}
+
+		int[] stack = new int[256];
+		for (int y = 0; y < mapHeight; y++) {
+			for (int x = 0; x < mapWidth; x++) {
+				if (regions[y * mapWidth + x] != -1 || !compare(x, y)) {
+					continue;
 				}
 
-				// Right
-				for (int x = xp + 1; x <= mapWidth - 1; x++) {
-					if (compare(x, y)) {
-						set(x, y);
-						groupSize++;
-
-						// Up
-						if (y - 1 >= 0 && compare(x, y - 1)) {
-							list.add(new int[] { x, y - 1 });
-						}
-
-						// Down
-						if (y + 1 <= mapHeight - 1 && compare(x, y + 1)) {
-							list.add(new int[] { x, y + 1 });
-						}
-					} else {
-						break;
+				final int r = regionCount++;
+				if (regionCount + 1 > regionStarts.length) {
+					regionStarts = grow(regionStarts);
+					regionTypes = grow(regionTypes);
+					regionBounds = grow(regionBounds);
+				}
+				regionStarts[r] = tileCount;
+				regionTypes[r] = 0;
+				regionBounds[r * 4] = x;
+				regionBounds[r * 4 + 1] = y;
+				regionBounds[r * 4 + 2] = x;
+				regionBounds[r * 4 + 3] = y;
+
+				int stackSize = 0;
+				regions[y * mapWidth + x] = r;
+				stack[stackSize++] = y * mapWidth + x;
+				while (stackSize > 0) {
+					final int i = stack[--stackSize];
+					final int tx = i % mapWidth;
+					final int ty = i / mapWidth;
+					if (tileCount == regionTiles.length) {
+						regionTiles = grow(regionTiles);
+					}
+					regionTiles[tileCount++] = i;
+					set(r, tx, ty);
+
+					// Neighbours
+					if (stackSize + 4 > stack.length) {
+						stack = grow(stack);
+					}
+					if (tx > 0 && add(r, tx - 1, ty)) {
+						stack[stackSize++] = i - 1;
+					}
+					if (tx < mapWidth - 1 && add(r, tx + 1, ty)) {
+						stack[stackSize++] = i + 1;
+					}
+					if (ty > 0 && add(r, tx, ty - 1)) {
+						stack[stackSize++] = i - mapWidth;
+					}
+					if (ty < mapHeight - 1 && add(r, tx, ty + 1)) {
+						stack[stackSize++] = i + mapWidth;
 					}
 				}
 			}
 		}
-		return groupSize;
+		regionStarts[regionCount] = tileCount;
+		stale = false;
+	}
+
+	protected boolean compare(final int x, final int y) {
+		return map.tiles.get(TileStore.COL, x, y) == 1;
+	}
+
+	private boolean add(final int r, final int x, final int y) {
+		if (regions[y * mapWidth + x] == -1 && compare(x, y)) {
+			regions[y * mapWidth + x] = r;
+			return true;
+		}
+		return false;
+	}
+
+	private void set(final int r, final int x, final int y) {
+		final int b = r * 4;
+		if (x < regionBounds[b]) {
+			regionBounds[b] = x;
+		}
+		if (y < regionBounds[b + 1]) {
+			regionBounds[b + 1] = y;
+		}
+		if (x > regionBounds[b + 2]) {
+			regionBounds[b + 2] = x;
+		}
+		if (y > regionBounds[b + 3]) {
+			regionBounds[b + 3] = y;
+		}
+	}
+
+	private int[] grow(final int[] data) {
+		final int[] grown = new int[data.length * 2];
+		System.arraycopy(data, 0, grown, 0, data.length);
+		return grown;
 	}
 }
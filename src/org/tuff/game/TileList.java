@@ -0,0 +1,83 @@
+/**
+ *  This file is part of Tuff.
+ *
+ *  Tuff is free software: you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Tuff is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along with
+ *  Tuff. If not, see <http://www.gnu.org/licenses/>.
+ *  
+ */
+
+package org.tuff.game;
+
+public class TileList {
+	// Tiles are stored in one array per field and reused from frame to frame
+	private int[] tileX = new int[64];
+	private int[] tileY = new int[64];
+	private int[] tileValue = new int[64];
+	private int size = 0;
+
+	// Access ------------------------------------------------------------------
+	public final int size() {
+		return size;
+	}
+
+	public final int getX(final int i) {
+		return tileX[i];
+	}
+
+	public final int getY(final int i) {
+		return tileY[i];
+	}
+
+	public final int getValue(final int i) {
+		return tileValue[i];
+	}
+
+	public final void add(final int x, final int y, final int value) {
+		if (size == tileX.length) {
+			tileX = grow(tileX);
+			tileY = grow(tileY);
+			tileValue = grow(tileValue);
+		}
+		tileX[size] = x;
+		tileY[size] = y;
+		tileValue[size] = value;
+		size++;
+	}
+
+	public final void clear() {
+		size = 0;
+	}
+
+	// Drops the tiles outside of an area, the others keep their order
+	public final void cull(final int xs, final int ys, final int xm,
+			final int ym) {
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			final int x = tileX[i];
+			final int y = tileY[i];
+			if (x >= xs && x < xm && y >= ys && y < ym) {
+				tileX[n] = x;
+				tileY[n] = y;
+				tileValue[n] = tileValue[i];
+				n++;
+			}
+		}
+		size = n;
+	}
+
+	private int[] grow(final int[] data) {
+		final int[] grown = new int[data.length * 2];
+		System.arraycopy(data, 0, grown, 0, data.length);
+		return grown;
+	}
+}
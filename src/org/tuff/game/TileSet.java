@@ -0,0 +1,106 @@
+/**
+ *  This file is part of Tuff.
+ *
+ *  Tuff is free software: you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Tuff is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along with
+ *  Tuff. If not, see <http://www.gnu.org/licenses/>.
+ *  
+ */
+
+package org.tuff.game;
+
+public class TileSet {
+	// Tiles in the order they were added, the table holds the index + 1 of
+	// the tile stored in each slot and 0 for free slots
+	private int[] tileX = new int[16];
+	private int[] tileY = new int[16];
+	private int[] table = new int[32];
+	private int size = 0;
+
+	public int size() {
+		return size;
+	}
+
+	public int getX(final int i) {
+		return tileX[i];
+	}
+
+	public int getY(final int i) {
+		return tileY[i];
+	}
+
+	public boolean contains(final int x, final int y) {
+		final int mask = table.length - 1;
+		for (int s = hash(x, y) & mask;; s = (s + 1) & mask) {
+			final int i = table[s] - 1;
+			if (i == -1) {
+				return false;
+
+			} else if (tileX[i] == x && tileY[i] == y) {
+				return true;
+			}
+		}
+	}
+
+	// Returns whether the tile wasn't in the set yet
+	public boolean add(final int x, final int y) {
+		if (contains(x, y)) {
+			return false;
+		}
+		if (size == tileX.length) {
+			tileX = grow(tileX);
+			tileY = grow(tileY);
+		}
+		tileX[size] = x;
+		tileY[size] = y;
+		size++;
+
+		// Keep the table at most half full
+		if (size * 2 > table.length) {
+			table = new int[table.length * 2];
+			for (int i = 0; i < size; i++) {
+				insert(i);
+			}
+
+		} else {
+			insert(size - 1);
+		}
+		return true;
+	}
+
+	public void clear() {
+		for (int s = 0; s < table.length; s++) {
+			table[s] = 0;
+		}
+		size = 0;
+	}
+
+	private void insert(final int i) {
+		final int mask = table.length - 1;
+		int s = hash(tileX[i], tileY[i]) & mask;
+		while (table[s] != 0) {
+			s = (s + 1) & mask;
+		}
+		table[s] = i + 1;
+	}
+
+	private int hash(final int x, final int y) {
+		final int h = (x * 0x9e3779b1) ^ (y * 0x85ebca6b);
+		return h ^ (h >>> 16);
+	}
+
+	private int[] grow(final int[] data) {
+		final int[] grown = new int[data.length * 2];
+		System.arraycopy(data, 0, grown, 0, data.length);
+		return grown;
+	}
+}
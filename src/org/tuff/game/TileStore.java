@@ -0,0 +1,273 @@
+/**
+ *  This file is part of Tuff.
+ *
+ *  Tuff is free software: you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Tuff is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License along with
+ *  Tuff. If not, see <http://www.gnu.org/licenses/>.
+ *  
+ */
+
+package org.tuff.game;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TileStore {
+	// Resident layers, kept for the whole map
+	public static final int MAP = 0;
+	public static final int COL = 1;
+	public static final int TRANSPARENT = 2;
+	public static final int GROUND = 3;
+	public static final int SOUND = 4;
+	public static final int DRAW_TRANSPARENT = 5;
+	public static final int OVERLAY_TRANSPARENT = 6;
+	public static final int BORDER_TRANSPARENT = 7;
+	public static final int RESIDENT_LAYERS = 8;
+
+	// Cached layers, rendered on demand and evicted when unused
+	public static final int DRAW = 8;
+	public static final int OVERLAY = 9;
+	public static final int BORDER = 10;
+	public static final int CACHED_LAYERS = 3;
+	public static final int LAYERS = 11;
+
+	// Chunks
+	public static final int CHUNK_SHIFT = 5;
+	public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	public static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	public static final int MAX_CACHED = 64;
+
+	public interface ChunkRenderer {
+		void renderChunk(int xs, int ys, int xm, int ym);
+
+		void renderChunks(List<int[]> areas);
+	}
+
+	// All layers of a tile are stored next to each other, tiles are row
+	// major inside of their chunk
+	protected final int width;
+	protected final int height;
+	protected final int chunksX;
+	protected final int chunksY;
+	private final byte[][] resident;
+	private final byte[][] cached;
+	private final int[] cachedUse;
+	private final int[] changes;
+	private int cachedCount = 0;
+	private int cachedClock = 0;
+	private int cachedLast = -1;
+	private ChunkRenderer renderer;
+
+	public TileStore(final int width, final int height) {
+		this.width = width;
+		this.height = height;
+		chunksX = (width + CHUNK_MASK) >> CHUNK_SHIFT;
+		chunksY = (height + CHUNK_MASK) >> CHUNK_SHIFT;
+		resident = new byte[chunksX * chunksY][];
+		cached = new byte[chunksX * chunksY][];
+		cachedUse = new int[chunksX * chunksY];
+		changes = new int[chunksX * chunksY];
+	}
+
+	public void setRenderer(final ChunkRenderer renderer) {
+		this.renderer = renderer;
+		invalidate();
+	}
+
+	// Index -------------------------------------------------------------------
+	public final int chunk(final int x, final int y) {
+		return (y >> CHUNK_SHIFT) * chunksX + (x >> CHUNK_SHIFT);
+	}
+
+	public final int tile(final int x, final int y) {
+		return ((y & CHUNK_MASK) << CHUNK_SHIFT) | (x & CHUNK_MASK);
+	}
+
+	public final boolean contains(final int x, final int y) {
+		return x >= 0 && y >= 0 && x < width && y < height;
+	}
+
+	// Access ------------------------------------------------------------------
+	public final int get(final int layer, final int x, final int y) {
+		final int c = chunk(x, y);
+		if (layer < RESIDENT_LAYERS) {
+			final byte[] data = resident[c];
+			return data == null ? 0 : data[tile(x, y) * RESIDENT_LAYERS
+					+ layer];
+
+		} else {
+			return cache(c)[tile(x, y) * CACHED_LAYERS + layer
+					- RESIDENT_LAYERS];
+		}
+	}
+
+	public final void set(final int layer, final int x, final int y,
+			final int value) {
+		final int c = chunk(x, y);
+		if (layer < RESIDENT_LAYERS) {
+			byte[] data = resident[c];
+			if (data == null) {
+				if (value == 0) {
+					return;
+				}
+				data = new byte[CHUNK_SIZE * CHUNK_SIZE * RESIDENT_LAYERS];
+				resident[c] = data;
+			}
+			final int i = tile(x, y) * RESIDENT_LAYERS + layer;
+			if (data[i] != (byte) value) {
+				data[i] = (byte) value;
+				changes[c]++;
+			}
+
+		} else {
+			// Writes don't count as a use, which keeps the cache untouched
+			// while chunks are rendered in parallel
+			byte[] data = cached[c];
+			if (data == null) {
+				data = cache(c);
+			}
+			final int i = tile(x, y) * CACHED_LAYERS + layer - RESIDENT_LAYERS;
+			if (data[i] != (byte) value) {
+				data[i] = (byte) value;
+				changes[c]++;
+			}
+		}
+	}
+
+	// Counts the writes which changed a chunk, chunks are only ever written by
+	// one thread at a time
+	public final int changes(final int cx, final int cy) {
+		if (cx < 0 || cy < 0 || cx >= chunksX || cy >= chunksY) {
+			return 0;
+		}
+		return changes[cy * chunksX + cx];
+	}
+
+	public final void clear(final int layer, int xs, int ys, int xm, int ym) {
+		xs = xs < 0 ? 0 : xs;
+		ys = ys < 0 ? 0 : ys;
+		xm = xm > width ? width : xm;
+		ym = ym > height ? height : ym;
+		for (int y = ys; y < ym; y++) {
+			for (int x = xs; x < xm; x++) {
+				set(layer, x, y, 0);
+			}
+		}
+	}
+
+	// Cache -------------------------------------------------------------------
+	private byte[] cache(final int c) {
+		byte[] data = cached[c];
+		if (data == null) {
+			data = allocate(c);
+			if (renderer != null) {
+				final int[] area = area(c);
+				renderer.renderChunk(area[0], area[1], area[2], area[3]);
+			}
+
+		} else if (c != cachedLast) {
+			cachedUse[c] = ++cachedClock;
+			cachedLast = c;
+		}
+		return data;
+	}
+
+	private byte[] allocate(final int c) {
+		if (cachedCount >= MAX_CACHED) {
+			evict();
+		}
+		final byte[] data = new byte[CHUNK_SIZE * CHUNK_SIZE * CACHED_LAYERS];
+		cached[c] = data;
+		cachedCount++;
+		cachedUse[c] = ++cachedClock;
+		cachedLast = c;
+		return data;
+	}
+
+	private int[] area(final int c) {
+		final int xs = (c % chunksX) << CHUNK_SHIFT;
+		final int ys = (c / chunksX) << CHUNK_SHIFT;
+		return new int[] { xs, ys, Math.min(xs + CHUNK_SIZE, width),
+				Math.min(ys + CHUNK_SIZE, height) };
+	}
+
+	private void evict() {
+		int oldest = -1;
+		for (int c = 0; c < cached.length; c++) {
+			if (cached[c] != null
+					&& (oldest == -1 || cachedUse[c] < cachedUse[oldest])) {
+				oldest = c;
+			}
+		}
+		if (oldest != -1) {
+			cached[oldest] = null;
+			cachedCount--;
+		}
+	}
+
+	public void prepare(int xs, int ys, int xm, int ym) {
+		xs = xs < 0 ? 0 : xs;
+		ys = ys < 0 ? 0 : ys;
+		xm = xm > width ? width : xm;
+		ym = ym > height ? height : ym;
+		final List<int[]> areas = new ArrayList<int[]>();
+		for (int cy = ys >> CHUNK_SHIFT; cy <= (ym - 1) >> CHUNK_SHIFT; cy++) {
+			for (int cx = xs >> CHUNK_SHIFT; cx <= (xm - 1) >> CHUNK_SHIFT; cx++) {
+				final int c = cy * chunksX + cx;
+				if (cached[c] == null && renderer != null) {
+					// Never evict a chunk of this batch before it got rendered
+					if (areas.size() == MAX_CACHED) {
+						renderer.renderChunks(areas);
+						areas.clear();
+					}
+					allocate(c);
+					areas.add(area(c));
+
+				} else {
+					cache(c);
+				}
+			}
+		}
+
+		// Missing chunks get rendered all at once
+		if (areas.size() > 0) {
+			renderer.renderChunks(areas);
+		}
+	}
+
+	public void invalidate() {
+		for (int c = 0; c < cached.length; c++) {
+			cached[c] = null;
+		}
+		cachedCount = 0;
+		cachedLast = -1;
+	}
+
+	// Layers ------------------------------------------------------------------
+	public final byte[] getLayer(final int layer) {
+		final byte[] plane = new byte[width * height];
+		for (int y = 0, i = 0; y < height; y++) {
+			for (int x = 0; x < width; x++, i++) {
+				plane[i] = (byte) get(layer, x, y);
+			}
+		}
+		return plane;
+	}
+
+	public final void setLayer(final int layer, final byte[] plane) {
+		for (int y = 0, i = 0; y < height; y++) {
+			for (int x = 0; x < width; x++, i++) {
+				set(layer, x, y, plane[i]);
+			}
+		}
+	}
+}
@@ -24,7 +24,6 @@
 package org.tuff.game;
 
 import java.applet.Applet;
-import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Composite;
 import java.awt.Dimension;
@@ -81,6 +80,16 @@ public final class Tuff extends org.bonsai.dev.Game {
 	// Loading
 	private BufferedImage loadingImage;
 
+	// Frame, only the damaged parts of it get drawn again
+	private final Compositor compositor = new Compositor();
+	private BufferedImage frameImage;
+	private boolean damageControl = false;
+	private boolean damageFlash = false;
+	private boolean damagePaused = false;
+	private String damageMessage = "";
+	private int damageShard = -1;
+	private int damageShards = -1;
+
 	// Stuff
 	protected static boolean release = true;
 
@@ -217,6 +226,7 @@ public final class Tuff extends org.bonsai.dev.Game {
 
 		} else if (cmd.equals("sound")) {
 			map.showSound = !map.showSound;
+			map.oldMX = -1;
 			if (map.showSound) {
 				console.print("Where does the noise come from?");
 			}
@@ -235,6 +245,7 @@ public final class Tuff extends org.bonsai.dev.Game {
 			player.posX = map.startX * map.tileSize + 8;
 			player.posY = map.startY * map.tileSize + 16;
 		}
+		compositor.invalidate();
 	}
 
 	// Update ------------------------------------------------------------------
@@ -301,7 +312,7 @@ public final class Tuff extends org.bonsai.dev.Game {
 			}
 			if (!player.hasControl) {
 				if (input.keyPressed(java.awt.event.KeyEvent.VK_F4)) {
-					player.blocksOpened = new ArrayList<int[]>();
+					player.blocksOpened.clear();
 				}
 				if (input.keyPressed(java.awt.event.KeyEvent.VK_F5)) {
 					player.switchesToggled = new boolean[4];
@@ -405,55 +416,28 @@ public final class Tuff extends org.bonsai.dev.Game {
 	@Override
 	public void renderGame(final boolean loaded, final Graphics2D g) {
 		if (loaded) {
-			// Draw#
-			map.draw(g, player);
-			player.draw(g);
-			map.drawDefer(g, player);
-
-			// Info
-			if (!player.hasControl) {
-				showFPS(g, 2, 2);
-				String can = "";
-				can += "HIGH: " + (player.hasHighJump ? "YES" : "NO") + "\n";
-				can += "WALL: " + (player.hasWallJump ? "YES" : "NO") + "\n";
-				can += "DIVE: " + (player.hasDive ? "YES" : "NO") + "\n";
-				can += "SUPER: " + (player.hasSuperJump ? "YES" : "NO") + "\n";
-				can += "SPEED: " + (player.hasSpeed ? "YES" : "NO") + "\n";
-				can += "BREAK: " + (player.hasBreak ? "YES" : "NO") + "\n";
-				font.draw(g, can, 2, 48);
-
-			} else {
-				showShards(g, 2, 2);
-				if (showFPS) {
-					showFPS(g, 2, 16);
+			if (frameImage == null || frameImage.getWidth() != width()
+					|| frameImage.getHeight() != height()) {
+				frameImage = Surfaces.createImage(width(), height(), false);
+				if (frameImage == null) {
+					frameImage = image.create(width(), height(), false);
 				}
+				compositor.resize(width(), height());
 			}
 
-			// Flash
-			if (flashValue > 0.0f) {
-				Composite tmp = g.getComposite();
-				AlphaComposite alphaComposite = AlphaComposite.getInstance(
-						AlphaComposite.SRC_OVER, (float) (flashValue / 255.0));
-				g.setComposite(alphaComposite);
-				g.drawImage(currentFlashImage, null, 0, 0);
-				g.setComposite(tmp);
-			}
-
-			// Pause
-			if (isPaused()) {
-				fadeScreen(g);
-				centerText(g, "PAUSED", -8);
-
-			} else if (textMessage != "") {
-				fadeScreen(g);
-				centerText(g, "YOU GOT", -10);
-				centerText(g, textMessage, 6);
-				if (getTime() > textMessageTime + 1500) {
-					textMessage = "";
-					pauseMusic(false);
-					animationTime(false);
-				}
+			// Draw the damaged parts into the frame and show all of it
+			damage();
+			if (compositor.isDamaged()) {
+				final Graphics2D fg = frameImage.createGraphics();
+				fg.setRenderingHints(g.getRenderingHints());
+				compositor.clip(fg);
+				map.setTarget(frameImage);
+				renderFrame(fg);
+				map.setTarget(null);
+				fg.dispose();
+				compositor.clear();
 			}
+			g.drawImage(frameImage, 0, 0, null);
 
 		} else {
 			g.setColor(bgColor);
@@ -464,6 +448,85 @@ public final class Tuff extends org.bonsai.dev.Game {
 		}
 	}
 
+	private void renderFrame(final Graphics2D g) {
+		// Draw#
+		map.draw(g, player);
+		player.draw(g);
+		map.drawDefer(g, player);
+
+		// Info
+		if (!player.hasControl) {
+			showFPS(g, 2, 2);
+			String can = "";
+			can += "HIGH: " + (player.hasHighJump ? "YES" : "NO") + "\n";
+			can += "WALL: " + (player.hasWallJump ? "YES" : "NO") + "\n";
+			can += "DIVE: " + (player.hasDive ? "YES" : "NO") + "\n";
+			can += "SUPER: " + (player.hasSuperJump ? "YES" : "NO") + "\n";
+			can += "SPEED: " + (player.hasSpeed ? "YES" : "NO") + "\n";
+			can += "BREAK: " + (player.hasBreak ? "YES" : "NO") + "\n";
+			font.draw(g, can, 2, 48);
+
+		} else {
+			showShards(g, 2, 2);
+			if (showFPS) {
+				showFPS(g, 2, 16);
+			}
+		}
+
+		// Flash
+		if (flashValue > 0.0f) {
+			Composite tmp = g.getComposite();
+			g.setComposite(Composites.get((float) (flashValue / 255.0)));
+			g.drawImage(currentFlashImage, null, 0, 0);
+			g.setComposite(tmp);
+		}
+
+		// Pause
+		if (isPaused()) {
+			fadeScreen(g);
+			centerText(g, "PAUSED", -8);
+
+		} else if (textMessage != "") {
+			fadeScreen(g);
+			centerText(g, "YOU GOT", -10);
+			centerText(g, textMessage, 6);
+			if (getTime() > textMessageTime + 1500) {
+				textMessage = "";
+				pauseMusic(false);
+				animationTime(false);
+			}
+		}
+	}
+
+	// Damage ------------------------------------------------------------------
+	private void damage() {
+		final boolean paused = isPaused();
+		if (!player.hasControl || !damageControl || flashValue > 0.0f
+				|| damageFlash || paused != damagePaused
+				|| textMessage != damageMessage) {
+			compositor.invalidate();
+		}
+		damageControl = player.hasControl;
+		damageFlash = flashValue > 0.0f;
+		damagePaused = paused;
+		damageMessage = textMessage;
+		map.damage(compositor);
+		player.damage(compositor);
+
+		// Info, the frame counters are only known once the frame got drawn
+		final int shard = animation.get("shard");
+		final int shards = player.entitiesCollected.size();
+		if (shard != damageShard || shards != damageShards) {
+			compositor.damage(0, 0, 128, 16);
+		}
+		if (showFPS) {
+			compositor.damage(0, 16, 128, 24);
+		}
+		damageShard = shard;
+		damageShards = shards;
+		map.damageScaled(compositor);
+	}
+
 	private void showShards(Graphics2D g, int x, int y) {
 		g.drawImage(map.shardTiles[animation.get("shard")], x - 2, y - 4, null);
 		font.draw(g, "x " + player.entitiesCollected.size() + "/"
@@ -478,6 +541,7 @@ public final class Tuff extends org.bonsai.dev.Game {
 	@Override
 	public void finishGame(final boolean loaded) {
 		if (loaded) {
+			map.tileGen.save();
 			sound.stop("music0");
 			sound.stop("music1");
 			sound.stop("music2");
@@ -512,7 +576,10 @@ public final class Tuff extends org.bonsai.dev.Game {
 
 	// Flash -------------------------------------------------------------------
 	private BufferedImage createFlashImage(Color color) {
-		BufferedImage img = image.create(width(), height());
+		BufferedImage img = Surfaces.createImage(width(), height(), false);
+		if (img == null) {
+			img = image.create(width(), height());
+		}
 		Graphics2D g = img.createGraphics();
 		g.setColor(color);
 		g.fillRect(0, 0, width(), height());
@@ -552,9 +619,7 @@ public final class Tuff extends org.bonsai.dev.Game {
 
 	public void fadeScreen(Graphics2D g) {
 		Composite tmp = g.getComposite();
-		AlphaComposite alphaComposite = AlphaComposite.getInstance(
-				AlphaComposite.SRC_OVER, 0.5f);
-		g.setComposite(alphaComposite);
+		g.setComposite(Composites.get(0.5f));
 		g.setColor(Color.BLACK);
 		g.fillRect(0, 0, width(), height());
 		g.setComposite(tmp);
@@ -673,9 +738,9 @@ public final class Tuff extends org.bonsai.dev.Game {
 		// Entities
 		data.writeChars("ENT");
 		data.writeInt(player.entitiesCollected.size());
-		for (int e[] : player.entitiesCollected) {
-			data.writeInt(e[0]);
-			data.writeInt(e[1]);
+		for (int e = 0; e < player.entitiesCollected.size(); e++) {
+			data.writeInt(player.entitiesCollected.getX(e));
+			data.writeInt(player.entitiesCollected.getY(e));
 		}
 
 		// Warps Active
@@ -690,9 +755,9 @@ public final class Tuff extends org.bonsai.dev.Game {
 		// Blocks opened
 		data.writeChars("BLO");
 		data.writeInt(player.blocksOpened.size());
-		for (int b[] : player.blocksOpened) {
-			data.writeInt(b[0]);
-			data.writeInt(b[1]);
+		for (int b = 0; b < player.blocksOpened.size(); b++) {
+			data.writeInt(player.blocksOpened.getX(b));
+			data.writeInt(player.blocksOpened.getY(b));
 		}
 
 		// Switches toggled
@@ -744,8 +809,7 @@ public final class Tuff extends org.bonsai.dev.Game {
 			readString(data, 3);
 			int count = data.readInt();
 			for (int i = 0; i < count; i++) {
-				player.entitiesCollected.add(new int[] { data.readInt(),
-						data.readInt() });
+				player.entitiesCollected.add(data.readInt(), data.readInt());
 			}
 
 			// Warps
@@ -760,8 +824,7 @@ public final class Tuff extends org.bonsai.dev.Game {
 				readString(data, 3);
 				count = data.readInt();
 				for (int i = 0; i < count; i++) {
-					player.blocksOpened.add(new int[] { data.readInt(),
-							data.readInt() });
+					player.blocksOpened.add(data.readInt(), data.readInt());
 				}
 			} catch (Exception e) {
 
@@ -806,8 +869,7 @@ public final class Tuff extends org.bonsai.dev.Game {
 			// Entities
 			int count = stream.read();
 			for (int i = 0; i < count; i++) {
-				player.entitiesCollected.add(new int[] { stream.read(),
-						stream.read() });
+				player.entitiesCollected.add(stream.read(), stream.read());
 			}
 			map.updateLocal();
 
@@ -18,51 +18,41 @@
 
 package org.tuff.game;
 
-import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Composite;
 import java.awt.Graphics2D;
+import java.awt.Image;
 import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
+import java.awt.image.VolatileImage;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.bonsai.dev.GameObject;
 
-public class TuffMap extends GameObject<Tuff> {
+public class TuffMap extends GameObject<Tuff> implements
+		ChunkImages.ChunkPainter {
 
 	// Data
-	public byte[][] mapData;
-	public byte[][] drawData;
-	public byte[][] drawTransparentData;
-	public byte[][] overlayData;
-	public byte[][] overlayTransparentData;
-	public byte[][] borderData;
-	public byte[][] borderTransparentData;
-	public byte[][] groundData;
-	public byte[][] soundData;
-	public byte[][] colData;
-	public byte[][] transparentData;
+	public TileStore tiles;
 
 	// Lists
 	protected List<int[]> mapObjects = new ArrayList<int[]>();
-	private List<int[]> localMapObjects = new ArrayList<int[]>();
-	private List<int[]> localTrees = new ArrayList<int[]>();
-	private List<int[]> localSwitches = new ArrayList<int[]>();
-	private List<int[]> localBlocks = new ArrayList<int[]>();
-	private List<int[]> waterTileList = new ArrayList<int[]>();
-	private List<int[]> waterBorderList = new ArrayList<int[]>();
+	private final MapObjectStore local = new MapObjectStore();
+	private final ObstacleGrid obstacles = new ObstacleGrid(local);
+	private final ObjectGrid grid = new ObjectGrid(this);
+	private int[] localFound = new int[64];
+	private TileList waterTileList = new TileList();
+	private TileList waterBorderList = new TileList();
 	private List<int[]> breakEffects = new ArrayList<int[]>();
-	private List<int[]> normalTileList = new ArrayList<int[]>();
-	private List<int[]> transparentTileList = new ArrayList<int[]>();
+	private TileList normalTileList = new TileList();
 	private Map<Integer, Long> breakedBlocks = new HashMap<Integer, Long>();
 	private Map<Integer, Integer> breakedBlocksStatus = new HashMap<Integer, Integer>();
 
@@ -83,6 +73,17 @@ public class TuffMap extends GameObject<Tuff> {
 	private BufferedImage blockTile;
 	private BufferedImage[] blockTiles;
 
+	// Sprites, the deferred objects are drawn through one batch
+	private final SpriteBatch batch = new SpriteBatch();
+	private int waterSprites;
+	private int borderSprites;
+	private int saveSprites;
+	private int warpSprites;
+	private int shardSprites;
+	private int switchSprites;
+	private int blockSprite;
+	private int blockSprites;
+
 	// Sizes
 	protected int mapWidth;
 	protected int mapHeight;
@@ -137,9 +138,21 @@ public class TuffMap extends GameObject<Tuff> {
 
 	// Cache
 	private BufferedImage mapCache = null;
+	private VolatileImage mapSurface = null;
+	private ChunkImages chunkImages;
+	private int chunkState = -1;
 	public int oldMX = -1;
 	public int oldMY = -1;
 
+	// Damage, what the last composed frame showed
+	private boolean localChanged = true;
+	private int damageX = -1;
+	private int damageY = -1;
+	private int damageWater = -1;
+	private int damageSave = -1;
+	private int damageWarp = -1;
+	private int damageShard = -1;
+
 	// Enemies
 	// public List<Enemy> enemies;
 
@@ -166,10 +179,18 @@ public class TuffMap extends GameObject<Tuff> {
 		blockTile = image.get("/images/block.png");
 		switchTiles = image.gets("/images/switch.png", 2, 4);
 		blockTiles = image.gets("/images/blocks.png", 7, 1);
+		waterSprites = batch.add(waterTiles);
+		borderSprites = batch.add(borderTiles);
+		saveSprites = batch.add(saveTiles);
+		warpSprites = batch.add(warpTiles);
+		shardSprites = batch.add(shardTiles);
+		switchSprites = batch.add(switchTiles);
+		blockSprite = batch.add(blockTile);
+		blockSprites = batch.add(blockTiles);
 
 		// Tile Generator
 		tileGen = new TileGenerator();
-		mapCache = image.create(game.width() + 16, game.height() + 16, false);
+		createCache();
 
 		// Animations
 		animation.add("water", new int[] { 0, 1, 2, 1 }, 125, true);
@@ -190,9 +211,24 @@ public class TuffMap extends GameObject<Tuff> {
 	public class TileGenerator {
 		private BufferedImage[] backgrounds;
 		private BufferedImage[] overlays;
-		public BufferedImage[][][][] tiles;
 		private BufferedImage[][] overlayEdges;
 
+		// Tiles are packed into one atlas per type, with a row for each
+		// ground and a column for each combination. Combinations get
+		// generated the first time they're drawn
+		private static final int GROUNDS = 5;
+		private final BufferedImage[] atlases = new BufferedImage[5];
+		private final boolean[][] generated = new boolean[5][];
+		private final int[] combinations = new int[256];
+		private final int width;
+		private final int height;
+
+		// Atlases are kept on disk between runs, for each set of source
+		// images and border setting
+		private String assetHash = null;
+		private boolean cachedBorders = false;
+		private boolean changed = false;
+
 		private int[][] lowerTiles = { {}, { 1 }, { 5 }, { 1, 5, 2 }, { 7 },
 				{ 1, 7 }, { 5, 7, 8 }, { 1, 5, 7, 2, 8 }, { 3 }, { 1, 3, 0 },
 				{ 3, 5 }, { 1, 3, 5, 0, 2 }, { 3, 7, 6 }, { 1, 3, 7, 0, 6 },
@@ -217,14 +253,89 @@ public class TuffMap extends GameObject<Tuff> {
 		public TileGenerator() {
 			backgrounds = image.gets("/images/ground.png", 5, 4);
 			overlays = image.gets("/images/overlay.png", 3, 12);
-			tiles = new BufferedImage[5][5][1][1];
 			overlayEdges = new BufferedImage[4][1];
+			Arrays.fill(combinations, -1);
+			for (int i = 0; i < tileCombinations.length; i++) {
+				combinations[tileCombinations[i][0] << 4
+						| tileCombinations[i][1]] = i;
+			}
+			width = tileCombinations.length * 16;
+			height = GROUNDS * 16;
+
+			try {
+				assetHash = TileCache.hash(new String[] { "/images/ground.png",
+						"/images/overlay.png" });
+
+			} catch (IOException e) {
+				assetHash = null;
+			}
+			cachedBorders = noBorders;
+			load();
 		}
 
 		public void reset() {
-			tiles = new BufferedImage[5][5][1][1];
+			save();
+			for (int type = 0; type < generated.length; type++) {
+				if (generated[type] != null) {
+					Arrays.fill(generated[type], false);
+				}
+			}
+			cachedBorders = noBorders;
+			load();
+		}
+
+		// Cache ---------------------------------------------------------------
+		private TileCache getCache() {
+			if (assetHash == null) {
+				return null;
+			}
+			return new TileCache(new File(game.getBasePath() + "cache/tiles-"
+					+ assetHash + (cachedBorders ? "-flat" : "") + ".dat"));
 		}
 
+		private void load() {
+			final TileCache cache = getCache();
+			final int[][] pixels = new int[atlases.length][];
+			final boolean[][] flags = new boolean[atlases.length][];
+			if (cache != null
+					&& cache.read(width, height, GROUNDS
+							* tileCombinations.length, pixels, flags)) {
+				for (int type = 0; type < atlases.length; type++) {
+					if (pixels[type] != null) {
+						atlas(type).setRGB(0, 0, width, height, pixels[type],
+								0, width);
+						generated[type] = flags[type];
+					}
+				}
+			}
+		}
+
+		public void save() {
+			final TileCache cache = getCache();
+			if (cache == null || !changed) {
+				return;
+			}
+			final int[][] pixels = new int[atlases.length][];
+			for (int type = 0; type < atlases.length; type++) {
+				if (atlases[type] != null) {
+					pixels[type] = atlases[type].getRGB(0, 0, width, height,
+							null, 0, width);
+				}
+			}
+			try {
+				cache.write(width, height, pixels, generated);
+				changed = false;
+
+			} catch (IOException e) {
+				changed = true;
+
+			} catch (SecurityException e) {
+				changed = true;
+			}
+		}
+
+		// Generate ------------------------------------------------------------
+
 		private void generateLower(final Graphics2D g, final int id,
 				final int type) {
 			for (int i = 0; i < lowerTiles[id].length; i++) {
@@ -246,22 +357,55 @@ public class TuffMap extends GameObject<Tuff> {
 			}
 		}
 
-		public void generate(int type, int ground, int border) {
-			if (tiles[type][ground][0][0] == null) {
-				tiles[type][ground] = new BufferedImage[16][16];
+		public void draw(final Graphics2D g, final int type,
+				final int ground, final int tile, final int overlay,
+				final int x, final int y) {
+			final int combination = combinations[tile << 4 | overlay];
+			if (combination == -1) {
+				return;
 			}
-			for (int i = 0; i < tileCombinations.length; i++) {
-				final BufferedImage img = image.create(16, 16, false);
-				final Graphics2D g = (Graphics2D) img.getGraphics();
-				g.drawImage(backgrounds[ground + (type - 1) * 5], 0, 0, null);
-				if (!noBorders) {
-					generateLower(g, tileCombinations[i][0], border);
-					generateUpper(g, tileCombinations[i][1], border);
-				}
-				tiles[type][ground][tileCombinations[i][0]][tileCombinations[i][1]] = img;
-				g.dispose();
+			if (generated[type] == null
+					|| !generated[type][ground * tileCombinations.length
+							+ combination]) {
+				generate(type, ground, combination);
+			}
+			final int sx = combination * 16;
+			final int sy = ground * 16;
+			if (batch.uses(g)) {
+				batch.copy(atlases[type], sx, sy, 16, 16, x, y);
+
+			} else {
+				g.drawImage(atlases[type], x, y, x + 16, y + 16, sx, sy,
+						sx + 16, sy + 16, null);
 			}
 		}
+
+		private BufferedImage atlas(final int type) {
+			if (atlases[type] == null) {
+				atlases[type] = image.create(width, height, false);
+				generated[type] = new boolean[GROUNDS
+						* tileCombinations.length];
+			}
+			return atlases[type];
+		}
+
+		private void generate(final int type, final int ground,
+				final int combination) {
+			final Graphics2D g = atlas(type).createGraphics();
+			g.translate(combination * 16, ground * 16);
+			g.clipRect(0, 0, 16, 16);
+			g.setColor(Color.BLACK);
+			g.fillRect(0, 0, 16, 16);
+			g.drawImage(backgrounds[ground + (type - 1) * 5], 0, 0, null);
+			if (!noBorders) {
+				generateLower(g, tileCombinations[combination][0], type);
+				generateUpper(g, tileCombinations[combination][1], type);
+			}
+			g.dispose();
+			generated[type][ground * tileCombinations.length + combination] =
+					true;
+			changed = true;
+		}
 	}
 
 	// Control -----------------------------------------------------------------
@@ -344,7 +488,8 @@ public class TuffMap extends GameObject<Tuff> {
 						|| (transparentOldX != transparentX || transparentOldY != transparentY)) {
 					removeTransparency();
 					finder.find(tx, ty);
-					transparentTileList = finder.result;
+					transparentTile = finder.getType();
+					markTransparency();
 					renderer.redraw(finder.minX - 1, finder.minY - 1,
 							finder.maxX + 2, finder.maxY + 2, true);
 					addTransparency();
@@ -368,50 +513,59 @@ public class TuffMap extends GameObject<Tuff> {
 			transparentOldX = transparentX;
 			transparentOldY = transparentY;
 
-			// Map Objects
-			boolean warped = false;
-			for (int i = 0; i < localMapObjects.size(); i++) {
-				final int[] p = localMapObjects.get(i);
+			// PowerUPS
+			for (int i = 0; i < local.size(MapObjectStore.POWERUP); i++) {
+				final int[] p = local.get(MapObjectStore.POWERUP, i);
 				final int x = p[1] * tileSize;
 				final int y = p[2] * tileSize;
-
-				// PowerUPS
-				if (p[3] == 0) {
-					if (!player.hasAbility(powerModes[p[4]])) {
-						if (player.posX >= x && player.posX < x + 16) {
-							if (player.posY - 7 >= y
-									&& player.posY - 7 < y + 16) {
-								// powerUps.remove(i);
-								player.activateAbility(powerModes[p[4]]);
-							}
+				if (!player.hasAbility(powerModes[p[4]])) {
+					if (player.posX >= x && player.posX < x + 16) {
+						if (player.posY - 7 >= y && player.posY - 7 < y + 16) {
+							// powerUps.remove(i);
+							player.activateAbility(powerModes[p[4]]);
 						}
 					}
+				}
+			}
 
-					// Saves
-				} else if (p[3] == 1) {
-					if (player.posX >= x && player.posX < x + 16) {
-						if (player.posY - 7 >= y && player.posY - 7 < y + 16) {
-							if (input.keyPressed(KeyEvent.VK_DOWN)
-									|| input.keyPressed(KeyEvent.VK_S)) {
+			// Saves
+			for (int i = 0; i < local.size(MapObjectStore.SAVE); i++) {
+				final int[] p = local.get(MapObjectStore.SAVE, i);
+				final int x = p[1] * tileSize;
+				final int y = p[2] * tileSize;
+				if (player.posX >= x && player.posX < x + 16) {
+					if (player.posY - 7 >= y && player.posY - 7 < y + 16) {
+						if (input.keyPressed(KeyEvent.VK_DOWN)
+								|| input.keyPressed(KeyEvent.VK_S)) {
 
-								saveScale = 20f;
-								game.save();
-							}
+							saveScale = 20f;
+							game.save();
 						}
 					}
+				}
+			}
 
-					// Entities
-				} else if (p[3] == 2) {
-					if (player.posX >= x && player.posX < x + 16) {
-						if (player.posY - 7 >= y && player.posY - 7 < y + 16) {
-							player.entitiesCollected.add(new int[] { p[1], p[2] });
-							updateLocal();
-							game.flashScreen();
-						}
+			// Entities
+			for (int i = 0; i < local.size(MapObjectStore.SHARD); i++) {
+				final int[] p = local.get(MapObjectStore.SHARD, i);
+				final int x = p[1] * tileSize;
+				final int y = p[2] * tileSize;
+				if (player.posX >= x && player.posX < x + 16) {
+					if (player.posY - 7 >= y && player.posY - 7 < y + 16) {
+						player.entitiesCollected.add(p[1], p[2]);
+						updateLocal();
+						game.flashScreen();
 					}
+				}
+			}
 
-					// Activate Warps
-				} else if (p[3] == 3) {
+			// Warps, activating them or warping through an active one
+			boolean warped = false;
+			for (int i = 0; i < local.size(MapObjectStore.WARP); i++) {
+				final int[] p = local.get(MapObjectStore.WARP, i);
+				final int x = p[1] * tileSize;
+				final int y = p[2] * tileSize;
+				if (p[3] == 3) {
 					if (player.posX >= x && player.posX < x + 16) {
 						if (player.posY - 7 >= y && player.posY - 7 < y + 16) {
 							p[3] = 4;
@@ -419,8 +573,7 @@ public class TuffMap extends GameObject<Tuff> {
 						}
 					}
 
-					// Active Warps
-				} else if (p[3] == 4 && !warped) {
+				} else if (!warped) {
 					if (player.posX >= x && player.posX < x + 16) {
 						if (player.posY - 7 >= y && player.posY - 7 < y + 16) {
 							if (input.keyPressed(KeyEvent.VK_DOWN)
@@ -431,28 +584,41 @@ public class TuffMap extends GameObject<Tuff> {
 							}
 						}
 					}
+				}
+			}
 
-					// Blocks
-				} else if (p[3] == 5 && p[4] > 3
-						&& p[4] <= player.entitiesCollected.size()) {
+			// Blocks
+			for (int i = 0; i < local.size(MapObjectStore.BLOCK); i++) {
+				final int[] p = local.get(MapObjectStore.BLOCK, i);
+				if (p[4] > 3 && p[4] <= player.entitiesCollected.size()) {
+					final int x = p[1] * tileSize;
+					final int y = p[2] * tileSize;
 					final int dx = Math.abs((x + 16) - player.posX);
 					final int dy = Math.abs((y + 16) - (player.posY - 7));
 					if (Math.sqrt(dx * dx + dy * dy) < 32) {
-						player.blocksOpened.add(new int[] { p[1], p[2] });
+						player.blocksOpened.add(p[1], p[2]);
 						removeBlock(p);
 						updateLocal();
 					}
-					// Switches
-				} else if (p[3] >= 6 && p[3] <= 9 && p[4] == 0) {
+				}
+			}
+
+			// Switches
+			for (int i = 0; i < local.size(MapObjectStore.SWITCH); i++) {
+				final int[] p = local.get(MapObjectStore.SWITCH, i);
+				if (p[3] <= 9 && p[4] == 0) {
+					final int x = p[1] * tileSize;
+					final int y = p[2] * tileSize;
 					if (player.posX >= x + 3 && player.posX < x + 12) {
 						if (player.posY >= y + 6 && player.posY < y + 16) {
 							player.switchesToggled[p[3] - 6] = true;
 							p[4] = 1;
 							game.flashSwitch();
-							for (int e = 0; e < localMapObjects.size(); e++) {
-								final int[] c = localMapObjects.get(e);
-								if (c[0] == 0 && c[3] == 5
-										&& (c[4] == (p[3] - 6))) {
+							for (int e = 0; e < local
+									.size(MapObjectStore.BLOCK); e++) {
+								final int[] c = local.get(
+										MapObjectStore.BLOCK, e);
+								if (c[4] == (p[3] - 6)) {
 									removeBlock(c);
 								}
 							}
@@ -463,8 +629,8 @@ public class TuffMap extends GameObject<Tuff> {
 			}
 		}
 
-		for (int e = 0; e < localBlocks.size(); e++) {
-			final int p[] = localBlocks.get(e);
+		for (int e = 0; e < local.size(MapObjectStore.BLOCK); e++) {
+			final int p[] = local.get(MapObjectStore.BLOCK, e);
 			if (p[4] == 255) {
 				final Integer id = new Integer(p[1] * mapWidth + p[2]);
 				if (!breakedBlocks.containsKey(id)) {
@@ -511,29 +677,37 @@ public class TuffMap extends GameObject<Tuff> {
 	}
 
 	private void removeTransparency() {
-		if (transparentTileList.size() > 0) {
-			for (int y = finder.minY - 1; y <= finder.maxY + 1; y++) {
-				for (int x = finder.minX - 1; x <= finder.maxX + 1; x++) {
-					overlayTransparentData[x][y] = 0;
-					drawTransparentData[x][y] = 0;
-					transparentData[x][y] = 0;
-					borderTransparentData[x][y] = 0;
-				}
-			}
+		if (finder.minX <= finder.maxX) {
+			final int xs = finder.minX - 1;
+			final int ys = finder.minY - 1;
+			final int xm = finder.maxX + 2;
+			final int ym = finder.maxY + 2;
+			tiles.clear(TileStore.OVERLAY_TRANSPARENT, xs, ys, xm, ym);
+			tiles.clear(TileStore.DRAW_TRANSPARENT, xs, ys, xm, ym);
+			tiles.clear(TileStore.TRANSPARENT, xs, ys, xm, ym);
+			tiles.clear(TileStore.BORDER_TRANSPARENT, xs, ys, xm, ym);
+			oldMX = -1;
 		}
 		// transparentTile = 2;
 	}
 
 	private void addTransparency() {
-		if (transparentTileList.size() > 0) {
+		if (finder.size() > 0) {
 			for (int y = finder.minY - 1; y <= finder.maxY + 1; y++) {
 				for (int x = finder.minX - 1; x <= finder.maxX + 1; x++) {
-					transparentData[x][y] = 2;
+					if (tiles.contains(x, y)) {
+						tiles.set(TileStore.TRANSPARENT, x, y, 2);
+					}
 				}
 			}
-			for (int[] tile : transparentTileList) {
-				transparentData[tile[0]][tile[1]] = 1;
-			}
+			markTransparency();
+			oldMX = -1;
+		}
+	}
+
+	private void markTransparency() {
+		for (int t = 0; t < finder.size(); t++) {
+			tiles.set(TileStore.TRANSPARENT, finder.getX(t), finder.getY(t), 1);
 		}
 	}
 
@@ -549,9 +723,10 @@ public class TuffMap extends GameObject<Tuff> {
 	}
 
 	public void activateWarp(int x, int y) {
-		for (int i = 0; i < mapObjects.size(); i++) {
-			int[] p = mapObjects.get(i);
-			if (p[0] == 0 && p[3] == 3 && p[1] == x && p[2] == y) {
+		localFound = grid.find(x, y, x + 1, y + 1, localFound);
+		for (int i = 0; localFound[i] != -1; i++) {
+			int[] p = mapObjects.get(localFound[i]);
+			if (p[0] == 0 && p[3] == 3) {
 				p[3] = 4;
 			}
 		}
@@ -607,44 +782,62 @@ public class TuffMap extends GameObject<Tuff> {
 	// Render ------------------------------------------------------------------
 	public void render() {
 		renderer.render();
+		finder.invalidate();
+		oldMX = -1;
+		if (edit) {
+			editor.updateMap();
+		}
+	}
+
+	public void invalidate(final int xs, final int ys, final int xm,
+			final int ym) {
+		renderer.invalidate(xs, ys, xm, ym);
+	}
+
+	public void update() {
+		renderer.update();
+		finder.invalidate();
+		oldMX = -1;
 		if (edit) {
 			editor.updateMap();
 		}
 	}
 
 	protected int getAt(final int x, final int y) {
-		if (x < 0 || y < 0 || x > mapWidth - 1 || y > mapWidth - 1) {
+		if (x < 0 || y < 0 || x > mapWidth - 1 || y > mapHeight - 1) {
 			return 0;
 		} else {
-			return mapData[x][y];
+			return tiles.get(TileStore.MAP, x, y);
 		}
 	}
 
 	private int getAtTree(final int x, final int y) {
-		if (x < 0 || y < 0 || x > mapWidth - 1 || y > mapWidth - 1) {
+		if (x < 0 || y < 0 || x > mapWidth - 1 || y > mapHeight - 1) {
 			return 0;
 		} else {
-			if (colData[x][y] == 1) {
+			if (tiles.get(TileStore.COL, x, y) == 1) {
 				return transparentTile;
 
 			} else {
-				return mapData[x][y];
+				return tiles.get(TileStore.MAP, x, y);
 			}
 		}
 	}
 
 	public int getSoundAt(final int x, final int y) {
-		if (x < 0 || y < 0 || x > mapWidth - 1 || y > mapWidth - 1) {
+		if (x < 0 || y < 0 || x > mapWidth - 1 || y > mapHeight - 1) {
 			return -1;
 
 		} else {
-			if (soundData[x][y] >= 1 && mapData[x][y] == 4) {
+			final int type = tiles.get(TileStore.MAP, x, y);
+			final int sound = tiles.get(TileStore.SOUND, x, y);
+			if (sound >= 1 && type == 4) {
 				return 2;
 
-			} else if (soundData[x][y] >= 1 && mapData[x][y] == 2) {
+			} else if (sound >= 1 && type == 2) {
 				return 1;
 
-			} else if (mapData[x][y] == 0) {
+			} else if (type == 0) {
 				return 0;
 
 			} else {
@@ -654,6 +847,29 @@ public class TuffMap extends GameObject<Tuff> {
 	}
 
 	// Collision ---------------------------------------------------------------
+	// Pixels from x along the row, or from y along the column, which are
+	// known to give the same collision. That's the rest of the tile, unless
+	// a switch or block touches it
+	public int colRunX(final int x, final int y, final int add) {
+		if (!colUniform(x, y)) {
+			return 1;
+		}
+		return add > 0 ? tileSize - x % tileSize : x % tileSize + 1;
+	}
+
+	public int colRunY(final int x, final int y, final int add) {
+		if (!colUniform(x, y)) {
+			return 1;
+		}
+		return add > 0 ? tileSize - y % tileSize : y % tileSize + 1;
+	}
+
+	private boolean colUniform(final int x, final int y) {
+		return x >= 0 && y >= 0 && x / tileSize < mapWidth
+				&& y / tileSize < mapHeight
+				&& obstacles.find(x / tileSize, y / tileSize) == 0;
+	}
+
 	public int colAt(final int x, final int y) {
 		final int tx = x / tileSize;
 		final int ty = y / tileSize;
@@ -663,19 +879,19 @@ public class TuffMap extends GameObject<Tuff> {
 			return 10;
 		}
 
-		for (int e = 0; e < localSwitches.size(); e++) {
-			final int i[] = localSwitches.get(e);
-			if (x >= i[1] * tileSize + 2 && x <= i[1] * tileSize + 14) {
-				if (y >= i[2] * tileSize + 6 + (i[4] == 1 ? 6 : 0)
-						&& y <= i[2] * tileSize + 16) {
-					return 1;
+		// Switches and blocks, only the ones touching this tile get checked
+		final int count = obstacles.find(tx, ty);
+		for (int e = 0; e < count; e++) {
+			final int i[] = obstacles.get(e);
+			if (i[3] >= 6) {
+				if (x >= i[1] * tileSize + 2 && x <= i[1] * tileSize + 14) {
+					if (y >= i[2] * tileSize + 6 + (i[4] == 1 ? 6 : 0)
+							&& y <= i[2] * tileSize + 16) {
+						return 1;
+					}
 				}
-			}
-		}
 
-		for (int e = 0; e < localBlocks.size(); e++) {
-			final int i[] = localBlocks.get(e);
-			if (i[4] == 255) {
+			} else if (i[4] == 255) {
 				if (i[5] == 0) {
 					if (x >= i[1] * tileSize && x <= i[1] * tileSize + 16) {
 						if (y >= i[2] * tileSize && y <= i[2] * tileSize + 16) {
@@ -692,15 +908,16 @@ public class TuffMap extends GameObject<Tuff> {
 			}
 		}
 
-		if ((mapData[tx][ty] == 1 || mapData[tx][ty] == 3)
-				&& colData[tx][ty] == 0) {
-			return mapData[tx][ty];
+		final int type = tiles.get(TileStore.MAP, tx, ty);
+		final int col = tiles.get(TileStore.COL, tx, ty);
+		if ((type == 1 || type == 3) && col == 0) {
+			return type;
 		
-		} else if (game.player != null && game.player.speedActive == 3 && mapData[tx][ty] == 4){
-			return mapData[tx][ty];
+		} else if (game.player != null && game.player.speedActive == 3 && type == 4){
+			return type;
 			
 		} else {
-			return colData[tx][ty] == 2 ? 1 : 0;
+			return col == 2 ? 1 : 0;
 		}
 	}
 
@@ -717,8 +934,9 @@ public class TuffMap extends GameObject<Tuff> {
 
 			return false;
 		}
-		return mapData[tx][ty] == 4 || (both && mapData[tx][ty] == 1)
-				|| (colData[tx][ty] == 1 && transparentTile == 4);
+		final int type = tiles.get(TileStore.MAP, tx, ty);
+		return type == 4 || (both && type == 1)
+				|| (tiles.get(TileStore.COL, tx, ty) == 1 && transparentTile == 4);
 	}
 
 	public boolean transparentAt(final int x, final int y) {
@@ -729,15 +947,17 @@ public class TuffMap extends GameObject<Tuff> {
 
 			return false;
 		}
-		return colData[tx][ty] == 1;
+		return tiles.get(TileStore.COL, tx, ty) == 1;
 	}
 
 	public void removeAt(final int x, final int y) {
 		if (x >= 0 && x < mapWidth && y >= 0 && y < mapHeight) {
-			if (mapData[x][y] == 3) {
-				mapData[x][y] = (byte) surroundType(x, y);
+			if (tiles.get(TileStore.MAP, x, y) == 3) {
+				tiles.set(TileStore.MAP, x, y, surroundType(x, y));
 				breakEffects.add(new int[] { (int) game.getTime(), x, y, 1 });
-				renderer.redraw(x - 1, y - 1, x + 2, y + 2, false); // drawData
+				renderer.change(x, y, 3);
+				finder.changed(x, y);
+				oldMX = -1;
 			}
 		}
 	}
@@ -758,110 +978,109 @@ public class TuffMap extends GameObject<Tuff> {
 	// Items -------------------------------------------------------------------
 	public void addMapObject(int type, int x, int y, int subtype, int extra) {
 		mapObjects.add(new int[] { type, x, y, subtype, extra, 0 });
+		grid.invalidate();
 		updateLocal();
 	}
 
 	public void addMapObjectDirect(int type, int x, int y, int subtype,
 			int extra) {
 		mapObjects.add(new int[] { type, x, y, subtype, extra, 0 });
+		grid.invalidate();
+	}
+
+	// Needs to be called after objects got moved
+	public void objectsChanged() {
+		grid.invalidate();
+	}
+
+	// Redraws the map cache after something changed which isn't stored in
+	// the tiles
+	public void repaint(final int xs, final int ys, final int xm,
+			final int ym) {
+		chunkImages.invalidate(xs, ys, xm, ym);
+		oldMX = -1;
 	}
 
 	public void removeObject(int obj) {
 		mapObjects.remove(obj);
+		grid.invalidate();
 		updateLocal();
 	}
 
 	// Local -------------------------------------------------------------------
 	public void updateLocal() {
-		localMapObjects.clear();
-		localTrees.clear();
-		localSwitches.clear();
-		localBlocks.clear();
+		localChanged = true;
+		local.clear();
+		obstacles.invalidate();
 
 		final int width = screenWidth / 2;
 		final int height = screenHeight / 2;
 		final int sectorStartX = sectorX * width;
 		final int sectorStartY = sectorY * height;
 
-		objects: for (int[] object : mapObjects) {
-			if (object[1] >= sectorStartX - width
-					&& object[2] >= sectorStartY - height
-					&& object[1] < sectorStartX + screenWidth + width + 1
-					&& object[2] < sectorStartY + screenHeight + height + 1) {
-
-				if (object[0] == 1) {
-					localTrees.add(object);
-
-				} else {
-					if (object[3] == 2 && game.player.hasControl) {
-						for (int[] p : game.player.entitiesCollected) {
-							if (p[0] == object[1] && p[1] == object[2]) {
-								continue objects;
-							}
-						}
-					}
-
-					// Blocks
-					if (object[3] == 5 && game.player.hasControl) {
-						if (object[4] > 3) {
-							for (int[] p : game.player.blocksOpened) {
-								if (p[0] == object[1] && p[1] == object[2]) {
-									continue objects;
-								}
-							}
-							localBlocks.add(object);
+		localFound = grid.find(sectorStartX - width, sectorStartY - height,
+				sectorStartX + screenWidth + width + 1, sectorStartY
+						+ screenHeight + height + 1, localFound);
+		objects: for (int i = 0; localFound[i] != -1; i++) {
+			final int[] object = mapObjects.get(localFound[i]);
+
+			// Trees are part of the chunk images
+			if (object[0] != 1) {
+				if (object[3] == 2 && game.player.hasControl
+						&& game.player.entitiesCollected.contains(object[1],
+								object[2])) {
+					continue objects;
+				}
 
-						} else if (object[4] == 0
-								&& game.player.switchesToggled[0]) {
+				// Blocks
+				if (object[3] == 5 && game.player.hasControl) {
+					if (object[4] > 3) {
+						if (game.player.blocksOpened.contains(object[1],
+								object[2])) {
 							continue objects;
+						}
 
-						} else if (object[4] == 1
-								&& game.player.switchesToggled[1]) {
-							continue objects;
+					} else if (object[4] == 0
+							&& game.player.switchesToggled[0]) {
+						continue objects;
 
-						} else if (object[4] == 2
-								&& game.player.switchesToggled[2]) {
-							continue objects;
+					} else if (object[4] == 1
+							&& game.player.switchesToggled[1]) {
+						continue objects;
 
-						} else if (object[4] == 3
-								&& game.player.switchesToggled[3]) {
-							continue objects;
-						}
-						localBlocks.add(object);
+					} else if (object[4] == 2
+							&& game.player.switchesToggled[2]) {
+						continue objects;
 
-					} else if (object[3] == 5) {
-						localBlocks.add(object);
+					} else if (object[4] == 3
+							&& game.player.switchesToggled[3]) {
+						continue objects;
 					}
+				}
 
-					if (object[3] >= 6) {
-						if (game.player.hasControl) {
-							if (game.player.switchesToggled[object[3] - 6]) {
-								object[4] = 1;
-							}
-						} else {
-							object[4] = 0;
+				if (object[3] >= 6) {
+					if (game.player.hasControl) {
+						if (game.player.switchesToggled[object[3] - 6]) {
+							object[4] = 1;
 						}
+					} else {
+						object[4] = 0;
 					}
+				}
 
-					if (object[3] >= 6) {
-						localSwitches.add(object);
-					}
-
-					if (object[1] >= sectorStartX - width
-							&& object[2] >= sectorStartY - height
-							&& object[1] < sectorStartX + screenWidth + width
-									+ 1
-							&& object[2] < sectorStartY + screenHeight + height
-									+ 1) {
-
-						// if (object[3] != 5) {
-						// colData[object[1]][object[2]] = 2;
-						// colData[object[1] + 1][object[2]] = 2;
-						// colData[object[1]][object[2] + 1] = 2;
-						// colData[object[1] + 1][object[2] + 1] = 2;
-						localMapObjects.add(object);
-						// }
-					}
+				if (object[1] >= sectorStartX - width
+						&& object[2] >= sectorStartY - height
+						&& object[1] < sectorStartX + screenWidth + width + 1
+						&& object[2] < sectorStartY + screenHeight + height
+								+ 1) {
+
+					// if (object[3] != 5) {
+					// colData[object[1]][object[2]] = 2;
+					// colData[object[1] + 1][object[2]] = 2;
+					// colData[object[1]][object[2] + 1] = 2;
+					// colData[object[1] + 1][object[2] + 1] = 2;
+					local.add(object);
+					// }
 				}
 			}
 		}
@@ -876,85 +1095,378 @@ public class TuffMap extends GameObject<Tuff> {
 		sectorY = mapOffsetY / height;
 		if (oldSectorX != sectorX || oldSectorY != sectorY) {
 			updateLocal();
+			tiles.prepare(sectorX * width - width, sectorY * height - height,
+					sectorX * width + screenWidth + width + 1, sectorY * height
+							+ screenHeight + height + 1);
+		}
+	}
+
+	// Damage ------------------------------------------------------------------
+	// Anything that moves the view or changes the cache damages the whole
+	// frame, animated objects only damage their own area
+	public void damage(final Compositor compositor) {
+		if (isLoading || updateCache() || localChanged
+				|| screenOffsetX != damageX || screenOffsetY != damageY) {
+			compositor.invalidate();
+		}
+		localChanged = false;
+		damageX = screenOffsetX;
+		damageY = screenOffsetY;
+
+		// Animations
+		final int water = animation.get("water");
+		final int save = animation.get("save") | (int) saveScale << 8;
+		final int warp = animation.get("warp") | (int) warpScale << 8;
+		final int shard = animation.get("shard");
+		if (save != damageSave) {
+			damageObjects(compositor, MapObjectStore.SAVE, -10, 26);
+		}
+		if (warp != damageWarp) {
+			damageObjects(compositor, MapObjectStore.WARP, -10, 26);
+		}
+		if (shard != damageShard) {
+			damageObjects(compositor, MapObjectStore.SHARD, 0, 16);
+		}
+		if (!noWater && water != damageWater) {
+			for (int e = 0; e < waterTileList.size(); e++) {
+				final int x = waterTileList.getX(e) - mapOffsetX;
+				final int y = waterTileList.getY(e) - mapOffsetY;
+				compositor.damage(x * tileSize - scrollOffsetX, y * tileSize
+						- scrollOffsetY, tileSize, tileSize);
+			}
+		}
+		damageWater = water;
+		damageSave = save;
+		damageWarp = warp;
+		damageShard = shard;
+
+		// Blocks
+		for (int e = 0; e < local.size(MapObjectStore.BLOCK); e++) {
+			final int p[] = local.get(MapObjectStore.BLOCK, e);
+			if (p[4] == 255
+					&& breakedBlocks.containsKey(p[1] * mapWidth + p[2])) {
+				compositor.damage(p[1] * tileSize - screenOffsetX, p[2]
+						* tileSize - screenOffsetY, 32, 32);
+			}
+		}
+
+		// Break Effects, at their largest size
+		for (int i = 0; i < breakEffects.size(); i++) {
+			final int[] effect = breakEffects.get(i);
+			final int type = effect[3];
+			final int size = 44 * type;
+			compositor.damage(effect[1] * tileSize - screenOffsetX
+					- (type - 1) * 24 + 8 - size / 2, effect[2] * tileSize
+					- screenOffsetY - (type - 1) * 24 + 8 - size / 2, size,
+					size);
 		}
 	}
 
+	private void damageObjects(final Compositor compositor, final int kind,
+			final int offsetY, final int h) {
+		for (int e = 0; e < local.size(kind); e++) {
+			final int p[] = local.get(kind, e);
+			compositor.damage(p[1] * tileSize - screenOffsetX, p[2]
+					* tileSize - screenOffsetY + offsetY, 16, h);
+		}
+	}
+
+	// Save points and warps get scaled while drawn, which doesn't line up
+	// when only a part of them is drawn again. Called after everything else
+	// reported its damage
+	public void damageScaled(final Compositor compositor) {
+		boolean partial = true;
+		while (partial) {
+			partial = damagePartial(compositor, MapObjectStore.SAVE);
+			partial |= damagePartial(compositor, MapObjectStore.WARP);
+		}
+	}
+
+	private boolean damagePartial(final Compositor compositor, final int kind) {
+		boolean partial = false;
+		for (int e = 0; e < local.size(kind); e++) {
+			final int p[] = local.get(kind, e);
+			final int x = p[1] * tileSize - screenOffsetX;
+			final int y = p[2] * tileSize - screenOffsetY - 10;
+			if (compositor.isPartial(x, y, 16, 26)) {
+				compositor.damage(x, y, 16, 26);
+				partial = true;
+			}
+		}
+		return partial;
+	}
+
 	// Drawing -----------------------------------------------------------------
+	// The map cache stays on the graphics card when possible
+	private void createCache() {
+		mapSurface = Surfaces.createVolatile(game.width() + 16,
+				game.height() + 16);
+		if (mapSurface == null) {
+			mapCache = image.create(game.width() + 16, game.height() + 16,
+					false);
+		}
+	}
+
 	private boolean isVisible(int x, int y, int w, int h) {
 		return (x <= screenWidth * tileSize && x + w >= 0
 				&& y <= screenHeight * tileSize && (y + h) >= 0);
 	}
 
+	// Image the graphics passed to drawDefer draw into, sprites are written
+	// into it directly when it has a plain int raster
+	public void setTarget(final BufferedImage target) {
+		batch.setTarget(target);
+	}
+
 	public void draw(Graphics2D g, Player player) {
 		if (isLoading) {
 			return;
 		}
+		updateCache();
+
+		// Draw Cache Image
+		objImgCount = 0;
+		if (mapSurface != null) {
+			g.drawImage(mapSurface, 0 - scrollOffsetX, 0 - scrollOffsetY, null);
+			if (mapSurface.contentsLost()) {
+				oldMX = -1;
+			}
+
+		} else {
+			batch.begin(g);
+			batch.copy(mapCache, 0, 0, mapCache.getWidth(),
+					mapCache.getHeight(), 0 - scrollOffsetX, 0 - scrollOffsetY);
+			batch.end();
+		}
+
+		// Draw Enemies
+		// for(Enemy e : enemies) {
+		// e.draw(g);
+		// }
+	}
+
+	// Returns whether the cache had to be drawn again
+	private boolean updateCache() {
 		checkSector();
 
+		// Chunk images only hold what stays the same from frame to frame
+		final int state = transparentTile | (showSound ? 16 : 0)
+				| (wasteLand ? 32 : 0) | (noBorders ? 64 : 0);
+		if (state != chunkState) {
+			chunkImages.invalidate();
+			chunkState = state;
+			oldMX = -1;
+		}
+
+		// Accelerated surfaces can lose their contents at any time
+		if (mapSurface != null) {
+			final int valid = mapSurface.validate(Surfaces.getConfiguration());
+			if (valid == VolatileImage.IMAGE_INCOMPATIBLE) {
+				mapSurface.flush();
+				createCache();
+			}
+			if (valid != VolatileImage.IMAGE_OK) {
+				oldMX = -1;
+			}
+		}
+		final Image cache = mapSurface != null ? mapSurface : mapCache;
+
 		// Draw Map
-		objImgCount = 0;
 		if (oldMX != mapOffsetX || oldMY != mapOffsetY
 				|| tileTransparency != oldTileTransparency) {
-			Graphics2D bg = (Graphics2D) mapCache.getGraphics();
-			bg.setColor(game.bgColor);
-			bg.fillRect(0, 0, game.width() + 16, game.height() + 16);
-			waterTileList.clear();
-			waterBorderList.clear();
-			normalTileList.clear();
-			for (int y = mapOffsetY; y < mapOffsetY + screenHeight + 1; y++) {
-				if (y >= 0 && y < mapHeight) {
-					for (int x = mapOffsetX; x < mapOffsetX + screenWidth + 1; x++) {
-						if (x >= 0 && x < mapWidth) {
-							final int type = mapData[x][y];
-							final int tile = drawData[x][y];
-							if (tile > 0) {
-								if (colData[x][y] == 1) {
-									drawTile(bg, transparentTile, tile, x, y,
-											transparentTile, false);
-									normalTileList.add(new int[] { 1, tile, x,
-											y });
-								} else {
-									drawTile(bg, type, tile, x, y, 0, false);
-								}
-							}
-						}
-					}
+			Graphics2D bg = (Graphics2D) cache.getGraphics();
+			final int dx = mapOffsetX - oldMX;
+			final int dy = mapOffsetY - oldMY;
+			final int w = screenWidth + 1;
+			final int h = screenHeight + 1;
+			if (oldMX == -1 || tileTransparency != oldTileTransparency
+					|| Math.abs(dx) >= w || Math.abs(dy) >= h) {
+				waterTileList.clear();
+				waterBorderList.clear();
+				normalTileList.clear();
+				bg.setColor(game.bgColor);
+				bg.fillRect(0, 0, game.width() + 16, game.height() + 16);
+				drawArea(bg, 0, 0, w, h);
+
+			} else {
+				// Move what is still visible and only draw the exposed edges
+				bg.copyArea(0, 0, cache.getWidth(null), cache.getHeight(null),
+						-dx * tileSize, -dy * tileSize);
+				waterTileList.cull(mapOffsetX, mapOffsetY, mapOffsetX + w,
+						mapOffsetY + h);
+				waterBorderList.cull(mapOffsetX, mapOffsetY, mapOffsetX + w,
+						mapOffsetY + h);
+				normalTileList.cull(mapOffsetX, mapOffsetY, mapOffsetX + w,
+						mapOffsetY + h);
+				final int xs = dx > 0 ? 0 : -dx;
+				final int xm = dx > 0 ? w - dx : w;
+				if (dx > 0) {
+					drawArea(bg, w - dx, 0, w, h);
+
+				} else if (dx < 0) {
+					drawArea(bg, 0, 0, -dx, h);
 				}
-			}
-			
-			// Draw Trees
-			if (!wasteLand) {
-				for (int e = 0; e < localTrees.size(); e++) {
-					final int tree[] = localTrees.get(e);
-					final int ground = getAtTree(tree[1], tree[2]);
-					final int add = ground == 4 ? 1 : (ground == 2 ? 2 : 0);
-					final int x = (tree[1] - mapOffsetX) * tileSize;
-					if (tree[3] <= 3) {
-						final int y = ((tree[2] - mapOffsetY) - 1) * tileSize;
-						if (isVisible(x, y, 32, 32)) {
-							bg.drawImage(treeTiles[tree[3] + add * 4], x, y, null);
-						}
-					} else {
-						final int y = (tree[2] - mapOffsetY) * tileSize;
-						if (isVisible(x, y, 16, 16)) {
-							bg.drawImage(leafTiles[tree[3] - 4 + add * 5], x, y,
-									null);
-						}
-					}
+				if (dy > 0) {
+					drawArea(bg, xs, h - dy, xm, h);
+
+				} else if (dy < 0) {
+					drawArea(bg, xs, 0, xm, -dy);
 				}
 			}
 			bg.dispose();
 			oldMX = mapOffsetX;
 			oldMY = mapOffsetY;
+			oldTileTransparency = tileTransparency;
+			return true;
 		}
+		return false;
+	}
 
-		// Draw Cache Image
-		g.drawImage(mapCache, 0 - scrollOffsetX, 0 - scrollOffsetY, null);
+	// Draws an area of the screen from the chunk images, the area is clipped
+	// so that trees don't cover the pixels which were moved over
+	private void drawArea(final Graphics2D bg, final int xs, final int ys,
+			final int xm, final int ym) {
+		final int px = xs * tileSize;
+		final int py = ys * tileSize;
+		final int pw = (xm - xs) * tileSize;
+		final int ph = (ym - ys) * tileSize;
+		bg.setClip(px, py, pw, ph);
+		bg.setColor(game.bgColor);
+		bg.fillRect(px, py, pw, ph);
+
+		final int mxs = Math.max(mapOffsetX + xs, 0);
+		final int mys = Math.max(mapOffsetY + ys, 0);
+		final int mxm = Math.min(mapOffsetX + xm, mapWidth);
+		final int mym = Math.min(mapOffsetY + ym, mapHeight);
+		final int size = TileStore.CHUNK_SIZE * tileSize;
+		final int cxs = mxs >> TileStore.CHUNK_SHIFT;
+		final int cys = mys >> TileStore.CHUNK_SHIFT;
+		final int cxm = (mxm - 1) >> TileStore.CHUNK_SHIFT;
+		final int cym = (mym - 1) >> TileStore.CHUNK_SHIFT;
+		for (int cy = cys; cy <= cym; cy++) {
+			for (int cx = cxs; cx <= cxm; cx++) {
+				final int x = ((cx << TileStore.CHUNK_SHIFT) - mapOffsetX)
+						* tileSize;
+				final int y = ((cy << TileStore.CHUNK_SHIFT) - mapOffsetY)
+						* tileSize;
+
+				// Transparent tiles fade, so they're drawn directly
+				if (isTransparent(cx, cy)) {
+					bg.clipRect(x, y, size, size);
+					drawTiles(bg, cx << TileStore.CHUNK_SHIFT,
+							cy << TileStore.CHUNK_SHIFT,
+							(cx + 1) << TileStore.CHUNK_SHIFT,
+							(cy + 1) << TileStore.CHUNK_SHIFT);
+					bg.setClip(px, py, pw, ph);
 
-		// Draw Enemies
-		// for(Enemy e : enemies) {
-		// e.draw(g);
-		// }
+				} else {
+					bg.drawImage(chunkImages.get(cx, cy), x, y, null);
+				}
+			}
+		}
+		bg.setClip(null);
+		listTiles(mxs, mys, mxm, mym);
+	}
+
+	private boolean isTransparent(final int cx, final int cy) {
+		final int xs = cx << TileStore.CHUNK_SHIFT;
+		final int ys = cy << TileStore.CHUNK_SHIFT;
+		return finder.minX <= finder.maxX
+				&& finder.minX - 1 < xs + TileStore.CHUNK_SIZE
+				&& finder.maxX + 1 >= xs
+				&& finder.minY - 1 < ys + TileStore.CHUNK_SIZE
+				&& finder.maxY + 1 >= ys;
+	}
+
+	@Override
+	public BufferedImage createChunk(final int width, final int height) {
+		final BufferedImage img = Surfaces.createImage(width, height, false);
+		return img != null ? img : image.create(width, height, false);
+	}
+
+	@Override
+	public void paintChunk(final Graphics2D g, final int xs, final int ys,
+			final int xm, final int ym) {
+		g.setColor(game.bgColor);
+		g.fillRect(0, 0, (xm - xs) * tileSize, (ym - ys) * tileSize);
+
+		// Tiles are drawn relative to the map offset
+		g.translate((mapOffsetX - xs) * tileSize, (mapOffsetY - ys) * tileSize);
+		drawTiles(g, xs, ys, xm, ym);
+	}
+
+	// Draws the tiles and trees of an area of the map
+	private void drawTiles(final Graphics2D bg, final int xs, final int ys,
+			final int xm, final int ym) {
+		for (int y = Math.max(ys, 0); y < Math.min(ym, mapHeight); y++) {
+			for (int x = Math.max(xs, 0); x < Math.min(xm, mapWidth); x++) {
+				final int type = tiles.get(TileStore.MAP, x, y);
+				final int tile = tiles.get(TileStore.DRAW, x, y);
+				if (tile > 0) {
+					if (tiles.get(TileStore.COL, x, y) == 1) {
+						drawTile(bg, transparentTile, tile, x, y,
+								transparentTile, false);
+					} else {
+						drawTile(bg, type, tile, x, y, 0, false);
+					}
+				}
+			}
+		}
+
+		// Draw Trees, chunks get drawn in parallel so each one looks them up
+		// on its own
+		if (!wasteLand) {
+			final int[] found = grid.find(xs - 1, ys, xm, ym + 1, new int[16]);
+			for (int e = 0; found[e] != -1; e++) {
+				final int tree[] = mapObjects.get(found[e]);
+				if (tree[0] != 1) {
+					continue;
+				}
+				final int ground = getAtTree(tree[1], tree[2]);
+				final int add = ground == 4 ? 1 : (ground == 2 ? 2 : 0);
+				final int x = (tree[1] - mapOffsetX) * tileSize;
+				if (tree[3] <= 3) {
+					final int y = ((tree[2] - mapOffsetY) - 1) * tileSize;
+					bg.drawImage(treeTiles[tree[3] + add * 4], x, y, null);
+				} else {
+					final int y = (tree[2] - mapOffsetY) * tileSize;
+					bg.drawImage(leafTiles[tree[3] - 4 + add * 5], x, y, null);
+				}
+			}
+		}
+	}
+
+	// Water is animated and collision tiles fade out, so these get drawn
+	// every frame on top of the map
+	private void listTiles(final int xs, final int ys, final int xm,
+			final int ym) {
+		for (int y = ys; y < ym; y++) {
+			for (int x = xs; x < xm; x++) {
+				final int tile = tiles.get(TileStore.DRAW, x, y);
+				if (tile > 0) {
+					final boolean col = tiles.get(TileStore.COL, x, y) == 1;
+					final int type = col ? transparentTile : tiles.get(
+							TileStore.MAP, x, y);
+					if (type == 4) {
+						if (tiles.get(TileStore.BORDER, x, y) > 0) {
+							waterBorderList.add(x, y, 0);
+						}
+						waterTileList.add(x, y, x % 2 == 1 && y % 2 == 1 ? 3
+								: 0);
+					}
+					if (col) {
+						final int tborder = tiles.get(
+								TileStore.BORDER_TRANSPARENT, x, y);
+						if (type == 4
+								&& tiles.get(TileStore.TRANSPARENT, x, y) == 1
+								&& tborder > 0) {
+							waterBorderList.add(x, y, 0);
+						}
+						normalTileList.add(x, y, tile);
+					}
+				}
+			}
+		}
 	}
 
 	// Draw a Tile
@@ -967,55 +1479,33 @@ public class TuffMap extends GameObject<Tuff> {
 				- (offset ? scrollOffsetY : 0);
 
 		// Ground
-		final int ground = groundData[x][y];
-		if (tileGen.tiles[type][ground][0][0] == null) {
-			tileGen.generate(type, ground, type);
-		}
+		final int ground = tiles.get(TileStore.GROUND, x, y);
 
 		// Background Tiles
-		final int tra = transparentData[x][y];
+		final int tra = tiles.get(TileStore.TRANSPARENT, x, y);
 		if (tra != 2 || showTransparentTiles) {
-			g.drawImage(
-					tileGen.tiles[type][ground][tile < 16 ? tile : 0][overlayData[x][y]],
-					px, py, null);
+			tileGen.draw(g, type, ground, tile < 16 ? tile : 0,
+					tiles.get(TileStore.OVERLAY, x, y), px, py);
 		}
 
 		// Border
-		if (borderData[x][y] > 0) {
-			if (type == 4) {
-				waterBorderList.add(new int[] { px, py });
-
-			} else {
-				g.drawImage(borderTiles[borderData[x][y] + (type - 1) * 16],
-						px, py, null);
-			}
-		}
-
-		// Water
-		if (type == 4) {
-			waterTileList.add(new int[] { px, py,
-					(x % 2 == 1 && y % 2 == 1 ? 3 : 0) });
+		final int border = tiles.get(TileStore.BORDER, x, y);
+		if (border > 0 && type != 4) {
+			drawBorder(g, border + (type - 1) * 16, px, py);
 		}
 
 		// Transparency Overlay
 		if (tra == 2) {
-			g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER,
-					1.0f - tileTransparency));
-			final int ttile = drawTransparentData[x][y];
-			g.drawImage(
-					tileGen.tiles[type][ground][ttile < 16 ? ttile : 0][overlayTransparentData[x][y]],
-					px, py, null);
-			g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER,
-					1.0f));
+			setComposite(g, Composites.get(1.0f - tileTransparency));
+			final int ttile = tiles.get(TileStore.DRAW_TRANSPARENT, x, y);
+			tileGen.draw(g, type, ground, ttile < 16 ? ttile : 0,
+					tiles.get(TileStore.OVERLAY_TRANSPARENT, x, y), px, py);
+			setComposite(g, Composites.OPAQUE);
 
 		} else if (tra == 1) {
-			if (borderTransparentData[x][y] > 0) {
-				if (trans == 4) {
-					waterBorderList.add(new int[] { px, py });
-				} else {
-					g.drawImage(borderTiles[borderTransparentData[x][y]
-							+ (type - 1) * 16], px, py, null);
-				}
+			final int tborder = tiles.get(TileStore.BORDER_TRANSPARENT, x, y);
+			if (tborder > 0 && trans != 4) {
+				drawBorder(g, tborder + (type - 1) * 16, px, py);
 			}
 		}
 
@@ -1023,123 +1513,148 @@ public class TuffMap extends GameObject<Tuff> {
 		if (showSound) {
 			final int snd = getSoundAt(x, y);
 			if (snd != -1) {
+				if (batch.uses(g)) {
+					batch.flush();
+				}
 				g.setColor(colors[snd + 1]);
 				g.fillRect(px + 6, py + 6, 4, 4);
 			}
 		}
 	}
 
+	// The frame gets its tiles through the batch, the chunk images are drawn
+	// by Java2D
+	private void drawBorder(final Graphics2D g, final int border,
+			final int px, final int py) {
+		if (batch.uses(g)) {
+			batch.draw(borderSprites + border, px, py);
+
+		} else {
+			g.drawImage(borderTiles[border], px, py, null);
+		}
+	}
+
+	private void setComposite(final Graphics2D g, final Composite composite) {
+		if (batch.uses(g)) {
+			batch.setComposite(composite);
+
+		} else {
+			g.setComposite(composite);
+		}
+	}
+
 	public void drawDefer(Graphics2D g, Player player) {
 		if (isLoading) {
 			return;
 		}
 
 		// Map Objects
-		for (int e = 0; e < localMapObjects.size(); e++) {
-			final int p[] = localMapObjects.get(e);
+		batch.begin(g);
+
+		// PowerUPS
+		for (int e = 0; e < local.size(MapObjectStore.POWERUP); e++) {
+			final int p[] = local.get(MapObjectStore.POWERUP, e);
+			final int x = (p[1] * tileSize - screenOffsetX) + 3;
+			final int y = (p[2] * tileSize - screenOffsetY) + 3;
+			if (isVisible(x, y, 9, 11)
+					&& (!player.hasAbility(powerModes[p[4]]) || !player.hasControl)) {
+				batch.flush();
+				font.draw(g, powerModes[p[4]], x, y);
+			}
+		}
 
-			// PowerUPS
-			if (p[3] == 0) {
-				final int x = (p[1] * tileSize - screenOffsetX) + 3;
-				final int y = (p[2] * tileSize - screenOffsetY) + 3;
-				if (isVisible(x, y, 9, 11)
-						&& (!player.hasAbility(powerModes[p[4]]) || !player.hasControl)) {
-					font.draw(g, powerModes[p[4]], x, y);
-				}
-				// Save Points
-			} else if (p[3] == 1) {
-				final int x = (p[1] * tileSize - screenOffsetX);
-				final int y = (p[2] * tileSize - screenOffsetY) + 10
-						- (int) saveScale;
-				
-				if (isVisible(x, y, 16, 6 + (int) saveScale)) {
-					g.drawImage(saveTiles[animation.get("save")], x, y, 16,
-							6 + (int) saveScale, null);
-					objImgCount++;
-				}
+		// Save Points
+		for (int e = 0; e < local.size(MapObjectStore.SAVE); e++) {
+			final int p[] = local.get(MapObjectStore.SAVE, e);
+			final int x = (p[1] * tileSize - screenOffsetX);
+			final int y = (p[2] * tileSize - screenOffsetY) + 10
+					- (int) saveScale;
 
-				// Warps
-			} else if (p[3] == 3 || p[3] == 4) {
-				final int x = (p[1] * tileSize - screenOffsetX);
-				final int y = (p[2] * tileSize - screenOffsetY) + 10
-						- (p[3] == 4 ? (int) warpScale + 6 : 0);
-				
-				if (isVisible(x, y, 16, 6 + (p[3] == 4 ? (int) warpScale + 6
-						: 0))) {
-					g.drawImage(warpTiles[animation.get("warp")
-							+ (p[3] == 4 ? 0 : 3)], x, y, 16,
-							6 + (p[3] == 4 ? (int) warpScale + 6 : 0), null);
-					objImgCount++;
-				}
+			if (isVisible(x, y, 16, 6 + (int) saveScale)) {
+				batch.draw(saveSprites + animation.get("save"), x, y, 16,
+						6 + (int) saveScale);
+				objImgCount++;
+			}
+		}
 
-				// Entity
-			} else if (p[3] == 2) {
-				final int x = p[1] * tileSize - screenOffsetX;
-				final int y = p[2] * tileSize - screenOffsetY;
-				if (isVisible(x, y, 16, 16)) {
-					g.drawImage(shardTiles[animation.get("shard")], x, y, null);
-					objImgCount++;
-				}
+		// Warps
+		for (int e = 0; e < local.size(MapObjectStore.WARP); e++) {
+			final int p[] = local.get(MapObjectStore.WARP, e);
+			final int x = (p[1] * tileSize - screenOffsetX);
+			final int y = (p[2] * tileSize - screenOffsetY) + 10
+					- (p[3] == 4 ? (int) warpScale + 6 : 0);
+
+			if (isVisible(x, y, 16, 6 + (p[3] == 4 ? (int) warpScale + 6
+					: 0))) {
+				batch.draw(warpSprites + animation.get("warp")
+						+ (p[3] == 4 ? 0 : 3), x, y, 16,
+						6 + (p[3] == 4 ? (int) warpScale + 6 : 0));
+				objImgCount++;
+			}
+		}
 
-			} else if (p[3] >= 6) {
-				final int x = p[1] * tileSize - screenOffsetX;
-				final int y = p[2] * tileSize - screenOffsetY;
-				if (isVisible(x, y, 32, 32)) {
-					g.drawImage(switchTiles[0 + (p[4] == 1 ? 1 : 0)
-							+ (p[3] - 6) * 2], x, y, null);
-					objImgCount++;
-				}
+		// Entity
+		for (int e = 0; e < local.size(MapObjectStore.SHARD); e++) {
+			final int p[] = local.get(MapObjectStore.SHARD, e);
+			final int x = p[1] * tileSize - screenOffsetX;
+			final int y = p[2] * tileSize - screenOffsetY;
+			if (isVisible(x, y, 16, 16)) {
+				batch.draw(shardSprites + animation.get("shard"), x, y);
+				objImgCount++;
+			}
+		}
+
+		// Switches
+		for (int e = 0; e < local.size(MapObjectStore.SWITCH); e++) {
+			final int p[] = local.get(MapObjectStore.SWITCH, e);
+			final int x = p[1] * tileSize - screenOffsetX;
+			final int y = p[2] * tileSize - screenOffsetY;
+			if (isVisible(x, y, 32, 32)) {
+				batch.draw(switchSprites + (p[4] == 1 ? 1 : 0) + (p[3] - 6)
+						* 2, x, y);
+				objImgCount++;
 			}
 		}
 
 		// Water
 		if (!noWater) {
 			for (int e = 0; e < waterTileList.size(); e++) {
-				final int tile[] = waterTileList.get(e);
-				g.drawImage(waterTiles[animation.get("water") + tile[2]],
-						tile[0] - scrollOffsetX, tile[1] - scrollOffsetY, null);
+				final int x = (waterTileList.getX(e) - mapOffsetX) * tileSize
+						- scrollOffsetX;
+				final int y = (waterTileList.getY(e) - mapOffsetY) * tileSize
+						- scrollOffsetY;
+				batch.draw(waterSprites + animation.get("water")
+						+ waterTileList.getValue(e), x, y);
 				objImgCount++;
 			}
 
 			for (int e = 0; e < waterBorderList.size(); e++) {
-				final int tile[] = waterBorderList.get(e);
-				g.drawImage(borderTiles[1 + (4 - 1) * 16], tile[0]
-						- scrollOffsetX, tile[1] - scrollOffsetY, null);
+				final int x = (waterBorderList.getX(e) - mapOffsetX) * tileSize
+						- scrollOffsetX;
+				final int y = (waterBorderList.getY(e) - mapOffsetY) * tileSize
+						- scrollOffsetY;
+				batch.draw(borderSprites + 1 + (4 - 1) * 16, x, y);
 				objImgCount++;
 			}
 		}
 
-		// Blocks
+		// Blocks, the ones which are breaking fade and come last
 		Composite tmp = g.getComposite();
-		for (int e = 0; e < localBlocks.size(); e++) {
-			final int p[] = localBlocks.get(e);
+		g.setComposite(Composites.OPAQUE);
+		batch.begin(g);
+		for (int e = 0; e < local.size(MapObjectStore.BLOCK); e++) {
+			final int p[] = local.get(MapObjectStore.BLOCK, e);
 			final int x = p[1] * tileSize - screenOffsetX;
 			final int y = p[2] * tileSize - screenOffsetY;
 			if (isVisible(x, y, 32, 32)) {
 				if (p[4] == 255) {
-					final Integer id = p[1] * mapWidth + p[2];
-					if (breakedBlocks.containsKey(id)) {
-						long time = getTime() - breakedBlocks.get(id);
-						int img = breakedBlocksStatus.get(id) == 1 ? (int) Math.min(
-								6, time / 50)
-								: 6 - (int) Math.min(6, (time - 2000) / 50);
-						if (img < 0) {
-							img = 0;
-						}
-						g.setComposite(AlphaComposite.getInstance(
-								AlphaComposite.SRC_OVER, 1.0f - img * 0.16f));
-						g.drawImage(blockTiles[img], x, y, null);
-						
-					} else {
-						g.setComposite(AlphaComposite.getInstance(
-								AlphaComposite.SRC_OVER, 1f));
-						g.drawImage(blockTiles[0], x, y, null);
+					if (getBlockImage(p) == 0) {
+						batch.draw(blockSprites, x, y);
+						objImgCount++;
 					}
 
 				} else {
-					g.setComposite(AlphaComposite.getInstance(
-							AlphaComposite.SRC_OVER, 1f));
-					g.drawImage(blockTile, x, y, null);
+					batch.draw(blockSprite, x, y);
 					String str = Integer.toString(p[4]);
 					if (p[4] == 0) {
 						str = "A";
@@ -1151,24 +1666,34 @@ public class TuffMap extends GameObject<Tuff> {
 						str = "D";
 					}
 					final int w = font.width(str) / 2;
+					batch.flush();
 					font.draw(g, str, (x + 16) - w, y + 11);
+					objImgCount++;
+				}
+			}
+		}
+		for (int e = 0; e < local.size(MapObjectStore.BLOCK); e++) {
+			final int p[] = local.get(MapObjectStore.BLOCK, e);
+			final int x = p[1] * tileSize - screenOffsetX;
+			final int y = p[2] * tileSize - screenOffsetY;
+			if (p[4] == 255 && isVisible(x, y, 32, 32)) {
+				final int img = getBlockImage(p);
+				if (img > 0) {
+					batch.setComposite(Composites.get(1.0f - img * 0.16f));
+					batch.draw(blockSprites + img, x, y);
+					objImgCount++;
 				}
-				objImgCount++;
 			}
 		}
 
-		// Transparent Overlay
+		// Transparent Overlay, the hidden area and the other tiles each get
+		// drawn with one composite
 		if (!noHide) {
-			for (int e = 0; e < normalTileList.size(); e++) {
-				final int t[] = normalTileList.get(e);
-				g.setComposite(AlphaComposite.getInstance(
-						AlphaComposite.SRC_OVER,
-						transparentData[t[2]][t[3]] == 1 ? tileTransparency
-								: (player.hasControl ? 1.0f : 0.5f)));
-				drawTile(g, t[0], t[1], t[2], t[3], 0, true);
-				objImgCount++;
-			}
+			drawOverlay(g, true, Composites.get(tileTransparency));
+			drawOverlay(g, false, Composites.get(player.hasControl ? 1.0f
+					: 0.5f));
 		}
+		batch.end();
 
 		// Break Effects
 		for (int i = 0; i < breakEffects.size(); i++) {
@@ -1185,14 +1710,12 @@ public class TuffMap extends GameObject<Tuff> {
 
 				int size = (int) (20 + 24 * d) * type;
 				g.setColor(type == 1 ? Color.GRAY : blockColor);
-				g.setComposite(AlphaComposite.getInstance(
-						AlphaComposite.SRC_OVER, 0.5f - 0.5f * d));
+				g.setComposite(Composites.get(0.5f - 0.5f * d));
 				g.fillRect(x + 8 - size / 2, y + 8 - size / 2, size, size);
 
 				size = (int) (8 + 16 * d) * type;
 				g.setColor(type == 1 ? Color.GRAY : blockColor);
-				g.setComposite(AlphaComposite.getInstance(
-						AlphaComposite.SRC_OVER, 1f - 1.0f * d));
+				g.setComposite(Composites.get(1f - 1.0f * d));
 				g.fillRect(x + 8 - size / 2, y + 8 - size / 2, size, size);
 			}
 		}
@@ -1214,163 +1737,114 @@ public class TuffMap extends GameObject<Tuff> {
 		}
 	}
 
+	private void drawOverlay(final Graphics2D g, final boolean hidden,
+			final Composite alpha) {
+		for (int e = 0; e < normalTileList.size(); e++) {
+			final int x = normalTileList.getX(e);
+			final int y = normalTileList.getY(e);
+			if ((tiles.get(TileStore.TRANSPARENT, x, y) == 1) == hidden) {
+				// Tiles in front of the hidden area switch it while drawn
+				if (g.getComposite() != alpha) {
+					batch.setComposite(alpha);
+				}
+				drawTile(g, 1, normalTileList.getValue(e), x, y, 0, true);
+				objImgCount++;
+			}
+		}
+	}
+
+	// Image of a breaking block, 0 while it's solid
+	private int getBlockImage(final int[] p) {
+		final Integer id = p[1] * mapWidth + p[2];
+		final Long start = breakedBlocks.get(id);
+		if (start == null) {
+			return 0;
+		}
+		final long time = getTime() - start;
+		final int img = breakedBlocksStatus.get(id) == 1 ? (int) Math.min(6,
+				time / 50) : 6 - (int) Math.min(6, (time - 2000) / 50);
+		return img < 0 ? 0 : img;
+	}
+
 	// New / Load / Save -------------------------------------------------------
 	public void newMap(int width, int height) {
 		isLoading = true;
 		mapWidth = width;
 		mapHeight = height;
 		renderer = new MapRenderer(this);
-		mapData = new byte[mapWidth][mapHeight];
-		colData = new byte[mapWidth][mapHeight];
-		transparentData = new byte[mapWidth][mapHeight];
-		drawTransparentData = new byte[mapWidth][mapHeight];
-		overlayTransparentData = new byte[mapWidth][mapHeight];
-		borderTransparentData = new byte[mapWidth][mapHeight];
-		drawData = new byte[mapWidth][mapHeight];
-		groundData = new byte[mapWidth][mapHeight];
-		overlayData = new byte[mapWidth][mapHeight];
-		borderData = new byte[mapWidth][mapHeight];
-		soundData = new byte[mapWidth][mapHeight];
+		tiles = new TileStore(mapWidth, mapHeight);
+		tiles.setRenderer(renderer);
+		chunkImages = new ChunkImages(tiles, this, tileSize);
 		mapObjects = new ArrayList<int[]>();
+		grid.invalidate();
 		startX = 0;
 		startY = 0;
 		finder = new TileFinder(this);
 		for (int i = 0; i < 5; i++) {
-			mapData[i][1] = 1;
+			tiles.set(TileStore.MAP, i, 1, 1);
 		}
 		render();
 		updateLocal();
 		isLoading = false;
 	}
 
-	private InputStream getMapFile(String filename) {
+	private ByteBuffer getMapData(String filename) {
 		try {
 			File file = new File(filename != null ? filename : getPath()
 					+ "levels/level.lvl");
-			return new FileInputStream(file);
+			return LevelFile.readFile(file);
 
-		} catch (Exception e) {
-			return getClass().getResourceAsStream("/levels/level.lvl");
+		} catch (IOException e) {
+			try {
+				InputStream stream = getClass().getResourceAsStream(
+						"/levels/level.lvl");
+				return stream != null ? LevelFile.readStream(stream) : null;
+
+			} catch (IOException ex) {
+				return null;
+			}
 		}
 	}
 
 	public boolean loadMap(String file) {
 		// long time = System.nanoTime();
 		isLoading = true;
-		InputStream stream = getMapFile(file);
-		if (stream == null) {
+		ByteBuffer data = getMapData(file);
+		if (data == null) {
 			newMap(255, 255);
 			isLoading = false;
 			return false;
 		}
 
 		// Clean up
+		oldMX = -1;
 		waterTileList.clear();
 		waterBorderList.clear();
 		normalTileList.clear();
-		localMapObjects.clear();
-		localTrees.clear();
-		transparentTileList.clear();
-
-		try {
-			DataInputStream in = new DataInputStream(new BufferedInputStream(
-					stream));
-
-			// Header
-			if (!game.readString(in, 5).equals("TUFF2")) {
-				newMap(255, 255);
-				return false;
-			}
-			mapWidth = in.readInt();
-			mapHeight = in.readInt();
-			startX = in.readInt();
-			startY = in.readInt();
-
-			// Arrays
-			colData = new byte[mapWidth][mapHeight];
-			mapData = new byte[mapWidth][mapHeight];
-			drawData = new byte[mapWidth][mapHeight];
-			groundData = new byte[mapWidth][mapHeight];
-			overlayData = new byte[mapWidth][mapHeight];
-			borderData = new byte[mapWidth][mapHeight];
-			soundData = new byte[mapWidth][mapHeight];
-			transparentData = new byte[mapWidth][mapHeight];
-			drawTransparentData = new byte[mapWidth][mapHeight];
-			overlayTransparentData = new byte[mapWidth][mapHeight];
-			borderTransparentData = new byte[mapWidth][mapHeight];
-
-			// Data
-			if (!game.readString(in, 3).equals("MAP")) {
-				return false;
-			}
-			for (int y = 0; y < mapHeight; y++) {
-				for (int x = 0; x < mapWidth; x++) {
-					mapData[x][y] = in.readByte();
-				}
-			}
-
-			// Col data
-			if (!game.readString(in, 3).equals("COL")) {
-				return false;
-			}
-			int colCount = in.readInt();
-			for (int i = 0; i < colCount; i++) {
-				colData[in.readInt()][in.readInt()] = 1;
-			}
-
-			// Objects
-			if (!game.readString(in, 3).equals("OBJ")) {
-				return false;
-			}
-			shardCount = 0;
-			int objectCount = in.readInt();
-			mapObjects = new ArrayList<int[]>(objectCount);
-			for (int i = 0; i < objectCount; i++) {
-				int tree = in.readByte();
-				int type = in.readByte();
-				int x = in.readInt();
-				int y = in.readInt();
-				if (tree == 1) {
-					addMapObjectDirect(1, x, y, type, 0);
-
-				} else {
-					if (type == 0) {
-						addMapObjectDirect(0, x, y, 0, in.readByte());
+		local.clear();
+		obstacles.invalidate();
 
-					} else if (type == 1) {
-						addMapObjectDirect(0, x, y, 1, 0);
-
-					} else if (type == 2) {
-						addMapObjectDirect(0, x, y, 2, 0);
-						shardCount++;
-
-					} else if (type == 3) {
-						addMapObjectDirect(0, x, y, 3, 0);
-
-					} else if (type == 5) {
-						addMapObjectDirect(0, x, y, 5, in.readInt());
-
-					} else if (type >= 6) {
-						addMapObjectDirect(0, x, y, type, 0);
-					}
-				}
-			}
-			in.close();
-
-			// Render
-			finder = new TileFinder(this);
-			renderer = new MapRenderer(this);
-			render();
+		// Header, Data and Objects
+		if (!new LevelFile(this).read(data)) {
+			newMap(255, 255);
+			isLoading = false;
+			return false;
+		}
 
-			updateLocal();
+		// Render
+		grid.invalidate();
+		finder = new TileFinder(this);
+		renderer = new MapRenderer(this);
+		tiles.setRenderer(renderer);
+		chunkImages = new ChunkImages(tiles, this, tileSize);
+		render();
 
-			if (edit) {
-				editor.saveUndo();
-				// System.out.printf("Took %dms\n",
-				// (System.nanoTime() - time) / 1000000);
-			}
-		} catch (IOException e) {
+		updateLocal();
 
+		if (edit) {
+			editor.saveUndo();
+			// System.out.printf("Took %dms\n",
+			// (System.nanoTime() - time) / 1000000);
 		}
 
 		isLoading = false;